@@ -0,0 +1,161 @@
+package btclient;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Queue;
+
+// the block path of the piece table as it was before it was made lock-free,
+// every piece is guarded by its own monitor. it is kept only as the baseline
+// of PiecesBenchmark, the end game and the resets are left out
+class MonitorPieces {
+	private static class Piece {
+		Pieces.PieceState state = Pieces.PieceState.FREE;
+		BitSet requested = new BitSet();
+		BitSet have = new BitSet();
+		Peer peer;
+		ByteBuffer buffer;
+		BitSet receiving = new BitSet();
+	}
+
+	private Piece[] p;
+	private int pieceLength;
+	private int fragsPerPiece;
+	private PiecePicker picker;
+	private FragmentSaver fragmentSaver;
+
+	private Queue<ByteBuffer> freeBuffers = new ArrayDeque<>();
+	private long buffersMemory;
+	private long maxBuffersMemory = 32l * 1024 * 1024;
+
+	// the picker and the saver are shared with a table of the same shape
+	MonitorPieces(Pieces pieces, FragmentSaver fragmentSaver)
+	{
+		p = new Piece[pieces.getCount()];
+		for(int i = 0; i < p.length; ++i)
+			p[i] = new Piece();
+		pieceLength = pieces.getPieceLength();
+		fragsPerPiece = pieceLength / Pieces.FRAG_LENGTH;
+		picker = pieces.getPicker();
+		this.fragmentSaver = fragmentSaver;
+	}
+
+	public boolean requestPiece(int index, Peer peer)
+	{
+		Piece piece = p[index];
+		synchronized(piece) {
+			if(piece.state != Pieces.PieceState.FREE)
+				return false;
+			piece.state = Pieces.PieceState.DOWNLOADING;
+			piece.peer = piece.have.cardinality() == 0 ? peer : null;
+		}
+		picker.remove(index);
+		return true;
+	}
+
+	public Pieces.PieceFrag requestPieceFrag(int index)
+	{
+		Piece piece = p[index];
+		synchronized(piece) {
+			if(piece.state != Pieces.PieceState.DOWNLOADING)
+				return null;
+
+			int frag = piece.requested.nextClearBit(0);
+			if(frag >= fragsPerPiece)
+				return null;
+			piece.requested.set(frag);
+			return new Pieces.PieceFrag(index, frag);
+		}
+	}
+
+	public ByteBuffer getBlockBuffer(Pieces.PieceFrag f)
+	{
+		Piece piece = p[f.index];
+		synchronized(piece) {
+			if(piece.state != Pieces.PieceState.DOWNLOADING || piece.have.get(f.frag) || piece.receiving.get(f.frag))
+				return null;
+
+			if(piece.buffer == null) {
+				// some blocks of this piece already went to the disk
+				if(!piece.have.isEmpty())
+					return null;
+				piece.buffer = allocateBuffer();
+				if(piece.buffer == null)
+					return null;
+			}
+
+			piece.receiving.set(f.frag);
+			ByteBuffer b = piece.buffer.duplicate();
+			b.limit((f.frag+1)*Pieces.FRAG_LENGTH);
+			b.position(f.frag*Pieces.FRAG_LENGTH);
+			return b;
+		}
+	}
+
+	public boolean receivedBlock(Pieces.PieceFrag f)
+	{
+		Piece piece = p[f.index];
+		synchronized(piece) {
+			piece.receiving.clear(f.frag);
+			if(piece.have.get(f.frag))
+				return false;
+
+			piece.have.set(f.frag);
+			bufferedPieceCheck(f.index);
+			return true;
+		}
+	}
+
+	public void receivedFragment(Pieces.PieceFrag f, byte[] block)
+	{
+		Piece piece = p[f.index];
+		synchronized(piece) {
+			if(piece.have.get(f.frag))
+				return;
+
+			if(piece.buffer != null) {
+				// someone else is reading this block into the buffer right now
+				if(piece.receiving.get(f.frag))
+					return;
+
+				ByteBuffer b = piece.buffer.duplicate();
+				b.position(f.frag*Pieces.FRAG_LENGTH);
+				b.put(block);
+				piece.have.set(f.frag);
+				bufferedPieceCheck(f.index);
+				return;
+			}
+
+			piece.have.set(f.frag);
+		}
+		fragmentSaver.writePieceFragment(f.index, f.frag*Pieces.FRAG_LENGTH, block);
+	}
+
+	// must hold the piece lock
+	private void bufferedPieceCheck(int index)
+	{
+		Piece piece = p[index];
+		if(piece.have.cardinality() < fragsPerPiece)
+			return;
+
+		piece.state = Pieces.PieceState.DOWNLOADED;
+		ByteBuffer b = piece.buffer.duplicate();
+		b.position(0);
+		b.limit(pieceLength);
+		fragmentSaver.writePiece(index, b);
+	}
+
+	private ByteBuffer allocateBuffer()
+	{
+		synchronized(freeBuffers) {
+			ByteBuffer b = freeBuffers.poll();
+			if(b != null)
+				return b;
+
+			if(buffersMemory + pieceLength > maxBuffersMemory)
+				return null;
+			buffersMemory += pieceLength;
+			return ByteBuffer.allocateDirect(pieceLength);
+		}
+	}
+}
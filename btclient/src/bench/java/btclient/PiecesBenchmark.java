@@ -0,0 +1,130 @@
+package btclient;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// several threads request and receive the blocks of the same pieces, like
+// peers on different event loops. the lock-free table is run against the
+// per-piece monitors it replaced, one operation is a whole download of the
+// table. run with mvn -Pbench test-compile exec:exec
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PiecesBenchmark {
+	private static final int PIECE_LENGTH = 16 * Pieces.FRAG_LENGTH;
+	private static final int PIECES_COUNT = 64;
+
+	@Param({"1", "2", "4", "8"})
+	public int threads;
+
+	@Param({"atomic", "monitor"})
+	public String table;
+
+	private ExecutorService executor;
+	private Peer peer;
+
+	private Pieces pieces;
+	private MonitorPieces monitor;
+
+	@Setup(Level.Trial)
+	public void setUpTrial() throws Exception
+	{
+		executor = Executors.newFixedThreadPool(threads);
+		peer = Fixtures.peer();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial()
+	{
+		executor.shutdownNow();
+		Fixtures.closePeers();
+	}
+
+	// a fresh table for every download, the saver only queues what it gets
+	@Setup(Level.Invocation)
+	public void setUpInvocation() throws Exception
+	{
+		pieces = Fixtures.pieces(PIECE_LENGTH, PIECES_COUNT);
+		monitor = table.equals("monitor") ? new MonitorPieces(pieces, new FragmentSaver(Fixtures.torrent())) : null;
+	}
+
+	@Benchmark
+	public void download() throws Exception
+	{
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<Void>> results = new ArrayList<>();
+		for(int i = 0; i < threads; ++i) {
+			results.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception
+				{
+					start.await();
+					download(pieces, monitor);
+					return null;
+				}
+			}));
+		}
+
+		start.countDown();
+		for(Future<Void> r : results)
+			r.get();
+	}
+
+	// all threads go through the pieces in the same order, so they keep
+	// meeting on the same pieces and blocks. the monitor table is used
+	// instead of the pieces if there is one
+	private void download(Pieces pieces, MonitorPieces monitor)
+	{
+		byte[] block = new byte[Pieces.FRAG_LENGTH];
+		for(int index = 0; index < PIECES_COUNT; ++index) {
+			if(monitor != null)
+				monitor.requestPiece(index, peer);
+			else
+				pieces.requestPiece(index, peer);
+
+			while(true) {
+				Pieces.PieceFrag f = monitor != null ? monitor.requestPieceFrag(index) : pieces.requestPieceFrag(index);
+				if(f == null)
+					break;
+
+				ByteBuffer b = monitor != null ? monitor.getBlockBuffer(f) : pieces.getBlockBuffer(f);
+				if(b != null) {
+					b.put(block);
+					if(monitor != null)
+						monitor.receivedBlock(f);
+					else
+						pieces.receivedBlock(f, peer);
+				} else {
+					if(monitor != null)
+						monitor.receivedFragment(f, block);
+					else
+						pieces.receivedFragment(f, block, peer);
+				}
+			}
+		}
+	}
+}
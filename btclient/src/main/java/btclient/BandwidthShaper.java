@@ -0,0 +1,62 @@
+package btclient;
+
+// session-wide limits, every transfer has to fit into both the global and 
+// the torrent bucket
+public class BandwidthShaper {
+	// smallest amount worth waking up for
+	public static final int QUANTUM = Pieces.FRAG_LENGTH;
+	
+	private static BandwidthShaper instance;
+	
+	private TokenBucket downloadBucket;
+	private TokenBucket uploadBucket;
+	
+	public BandwidthShaper()
+	{
+		downloadBucket = new TokenBucket(0);
+		uploadBucket = new TokenBucket(0);
+	}
+	
+	public static synchronized BandwidthShaper getInstance()
+	{
+		if(instance == null)
+			instance = new BandwidthShaper();
+		return instance;
+	}
+	
+	public TokenBucket getDownloadBucket()
+	{
+		return downloadBucket;
+	}
+	
+	public TokenBucket getUploadBucket()
+	{
+		return uploadBucket;
+	}
+	
+	public void setMaxDownloadSpeed(long bytesPerSecond)
+	{
+		downloadBucket.setRate(bytesPerSecond);
+	}
+	
+	public void setMaxUploadSpeed(long bytesPerSecond)
+	{
+		uploadBucket.setRate(bytesPerSecond);
+	}
+	
+	public static long quota(TokenBucket torrentBucket, TokenBucket globalBucket)
+	{
+		return Math.min(torrentBucket.available(), globalBucket.available());
+	}
+	
+	public static long delay(TokenBucket torrentBucket, TokenBucket globalBucket)
+	{
+		return Math.max(torrentBucket.delay(QUANTUM), globalBucket.delay(QUANTUM));
+	}
+	
+	public static void consume(TokenBucket torrentBucket, TokenBucket globalBucket, long n)
+	{
+		torrentBucket.consume(n);
+		globalBucket.consume(n);
+	}
+}
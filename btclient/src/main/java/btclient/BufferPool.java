@@ -0,0 +1,136 @@
+package btclient;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+
+// session-wide pool of direct buffers, peers borrow them only while a message
+// is partly read or written
+public class BufferPool {
+	interface Waiter {
+		// returns false if the waiter is not interested anymore
+		public boolean bufferAvailable();
+	}
+
+	public static final int BUFFER_SIZE = (1<<14) + 100;
+
+	private static final long DEFAULT_MAX_MEMORY = 64l * 1024 * 1024;
+
+	private static BufferPool instance;
+
+	private final int bufferSize;
+	private long maxMemory;
+
+	private Deque<ByteBuffer> free;
+	private Queue<Waiter> waiters;
+
+	private int allocatedCount;
+	private int usedCount;
+
+	public BufferPool(int bufferSize, long maxMemory)
+	{
+		this.bufferSize = bufferSize;
+		this.maxMemory = maxMemory;
+		free = new ArrayDeque<>();
+		waiters = new ArrayDeque<>();
+		allocatedCount = 0;
+		usedCount = 0;
+	}
+
+	public static synchronized BufferPool getInstance()
+	{
+		if(instance == null)
+			instance = new BufferPool(BUFFER_SIZE, DEFAULT_MAX_MEMORY);
+		return instance;
+	}
+
+	public ByteBuffer acquire()
+	{
+		return acquire(null);
+	}
+
+	// if the pool is exhausted the waiter is notified when a buffer is released
+	public synchronized ByteBuffer acquire(Waiter waiter)
+	{
+		ByteBuffer b = free.pollFirst();
+		if(b == null && (long)(allocatedCount+1) * bufferSize <= maxMemory) {
+			b = ByteBuffer.allocateDirect(bufferSize);
+			++allocatedCount;
+		}
+
+		if(b == null) {
+			if(waiter != null)
+				waiters.add(waiter);
+			return null;
+		}
+
+		++usedCount;
+		b.clear();
+		return b;
+	}
+
+	public void release(ByteBuffer b)
+	{
+		synchronized(this) {
+			--usedCount;
+			if((long)allocatedCount * bufferSize > maxMemory) {
+				// the cap was lowered, let the gc free it
+				--allocatedCount;
+			} else {
+				free.addFirst(b);
+			}
+		}
+
+		while(true) {
+			Waiter w;
+			synchronized(this) {
+				if(free.isEmpty() && (long)(allocatedCount+1) * bufferSize > maxMemory)
+					return;
+				w = waiters.poll();
+			}
+			if(w == null || w.bufferAvailable())
+				return;
+		}
+	}
+
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+
+	public synchronized long getMaxMemory()
+	{
+		return maxMemory;
+	}
+
+	public synchronized void setMaxMemory(long maxMemory)
+	{
+		this.maxMemory = maxMemory;
+		while(!free.isEmpty() && (long)allocatedCount * bufferSize > maxMemory) {
+			free.pollFirst();
+			--allocatedCount;
+		}
+	}
+
+	public synchronized long getUsedMemory()
+	{
+		return (long)usedCount * bufferSize;
+	}
+
+	public synchronized long getAllocatedMemory()
+	{
+		return (long)allocatedCount * bufferSize;
+	}
+
+	// fraction of the memory cap that is lent out to peers
+	public synchronized double getOccupancy()
+	{
+		return maxMemory == 0 ? 1.0 : (double)usedCount * bufferSize / maxMemory;
+	}
+
+	public synchronized int getWaitersCount()
+	{
+		return waiters.size();
+	}
+}
@@ -0,0 +1,130 @@
+package btclient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+// tit-for-tat: the peers we get the most from are unchoked, one more slot 
+// is given away at random so new peers get a chance to prove themselves
+public class Choker {
+	public static final int DEFAULT_UPLOAD_SLOTS = 4;
+	
+	private static final long RECHOKE_INTERVAL = 10000;
+	private static final long OPTIMISTIC_INTERVAL = 30000;
+	
+	private int uploadSlots;
+	private Peer optimistic;
+	private long lastRechoke;
+	private long lastOptimistic;
+	private Random random;
+	
+	private static class Candidate {
+		Peer peer;
+		double rate;
+		
+		Candidate(Peer peer, double rate)
+		{
+			this.peer = peer;
+			this.rate = rate;
+		}
+	}
+	
+	public Choker(int uploadSlots)
+	{
+		this.uploadSlots = uploadSlots;
+		optimistic = null;
+		lastRechoke = 0;
+		lastOptimistic = 0;
+		random = new Random();
+	}
+	
+	public synchronized int getUploadSlots()
+	{
+		return uploadSlots;
+	}
+	
+	public synchronized void setUploadSlots(int uploadSlots)
+	{
+		this.uploadSlots = uploadSlots;
+		lastRechoke = 0;
+	}
+	
+	// called about once a second, peers are rechoked every 10 seconds or as 
+	// soon as a slot is free
+	public synchronized void tick(List<Peer> peers)
+	{
+		long now = System.currentTimeMillis();
+		if(now - lastRechoke < RECHOKE_INTERVAL && !freeSlot(peers))
+			return;
+		lastRechoke = now;
+		
+		List<Candidate> interested = new ArrayList<>();
+		for(Peer peer : peers) {
+			if(peer.isConnected() && peer.isPeerInterested())
+				interested.add(new Candidate(peer, rate(peer)));
+		}
+		
+		Collections.sort(interested, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate a, Candidate b)
+			{
+				return Double.compare(b.rate, a.rate);
+			}
+		});
+		
+		Set<Peer> unchoke = new HashSet<>();
+		int regular = Math.min(Math.max(0, uploadSlots-1), interested.size());
+		for(int i = 0; i < regular; ++i)
+			unchoke.add(interested.get(i).peer);
+		
+		boolean stale = optimistic == null || !optimistic.isConnected() || !optimistic.isPeerInterested();
+		if(uploadSlots > 0 && (stale || unchoke.contains(optimistic) || now - lastOptimistic >= OPTIMISTIC_INTERVAL)) {
+			List<Peer> choked = new ArrayList<>();
+			for(int i = regular; i < interested.size(); ++i) {
+				if(interested.get(i).peer != optimistic)
+					choked.add(interested.get(i).peer);
+			}
+			
+			if(!choked.isEmpty()) {
+				optimistic = choked.get(random.nextInt(choked.size()));
+				lastOptimistic = now;
+			} else if(stale || unchoke.contains(optimistic)) {
+				optimistic = null;
+			}
+		}
+		
+		if(uploadSlots > 0 && optimistic != null)
+			unchoke.add(optimistic);
+		
+		for(Peer peer : peers)
+			peer.setChoked(!unchoke.contains(peer));
+	}
+	
+	private boolean freeSlot(List<Peer> peers)
+	{
+		int unchoked = 0;
+		boolean waiting = false;
+		for(Peer peer : peers) {
+			if(!peer.isConnected() || !peer.isPeerInterested())
+				continue;
+			if(peer.isChoked())
+				waiting = true;
+			else
+				++unchoked;
+		}
+		return waiting && unchoked < uploadSlots;
+	}
+	
+	// while leeching peers are ranked by what they give us, while seeding by 
+	// how fast they take
+	private static double rate(Peer peer)
+	{
+		if(peer.getTorrent().isCompleted())
+			return peer.getUploadRate();
+		return peer.getDownloadRate();
+	}
+}
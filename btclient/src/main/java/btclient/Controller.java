@@ -296,6 +296,8 @@ public class Controller {
 		timer.cancel();
 		for(Controller.TorrentEntry entry : torrents)
 			entry.tor.forceStop();
+		PeerListener.getInstance().close();
+		PeerReactor.getInstance().stop();
 		serializer.stop();
 	}
 
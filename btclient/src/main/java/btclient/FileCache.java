@@ -0,0 +1,250 @@
+package btclient;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// open channels to the files of a torrent, shared by the disk thread and the
+// peers. when there are more than the cap the least recently used are closed,
+// a channel still in use is closed when its last user releases it
+public class FileCache implements Storage {
+	static class Handle {
+		final String pathname;
+		final FileChannel channel;
+		final boolean writable;
+		int users;
+		boolean retired;
+
+		Handle(String pathname, FileChannel channel, boolean writable)
+		{
+			this.pathname = pathname;
+			this.channel = channel;
+			this.writable = writable;
+		}
+	}
+
+	public static final int DEFAULT_MAX_OPEN_FILES = 32;
+
+	private int maxOpenFiles;
+	private LinkedHashMap<String, Handle> handles;
+
+	private long hitsCount;
+	private long opensCount;
+
+	public FileCache(int maxOpenFiles)
+	{
+		this.maxOpenFiles = Math.max(1, maxOpenFiles);
+		handles = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	// returns null if the file does not exist and write is false, the handle
+	// has to be given back with release()
+	public Handle acquire(String pathname, boolean write) throws IOException
+	{
+		List<Handle> closed = new ArrayList<>();
+		Handle h;
+		synchronized(this) {
+			h = handles.get(pathname);
+			if(h != null && write && !h.writable) {
+				// opened for reading only, it is opened again
+				handles.remove(pathname);
+				retire(h, closed);
+				h = null;
+			}
+
+			if(h != null) {
+				++hitsCount;
+			} else {
+				h = open(pathname, write);
+				if(h == null)
+					return null;
+				++opensCount;
+				handles.put(pathname, h);
+				evict(closed);
+			}
+			++h.users;
+		}
+
+		close(closed);
+		return h;
+	}
+
+	public void release(Handle h)
+	{
+		boolean close;
+		synchronized(this) {
+			close = --h.users == 0 && h.retired;
+		}
+		if(close)
+			close(h);
+	}
+
+	@Override
+	public void write(FragmentSaver.FileEntry e, long pos, ByteBuffer src) throws IOException
+	{
+		Handle h = acquire(e.pathname, true);
+		try {
+			while(src.hasRemaining())
+				pos += h.channel.write(src, pos);
+		} finally {
+			release(h);
+		}
+	}
+
+	@Override
+	public boolean read(FragmentSaver.FileEntry e, long pos, ByteBuffer dst) throws IOException
+	{
+		Handle h = acquire(e.pathname, false);
+		if(h == null)
+			return false;
+
+		try {
+			while(dst.hasRemaining()) {
+				int n = h.channel.read(dst, pos);
+				if(n < 0)
+					break;
+				pos += n;
+			}
+			return true;
+		} finally {
+			release(h);
+		}
+	}
+
+	@Override
+	public long transfer(FragmentSaver.FileEntry e, long pos, long length, WritableByteChannel target) throws IOException
+	{
+		Handle h = acquire(e.pathname, false);
+		if(h == null)
+			throw new FileNotFoundException(e.pathname);
+
+		try {
+			long done = 0;
+			while(done < length) {
+				long n = h.channel.transferTo(pos+done, length-done, target);
+				if(n <= 0)
+					break;
+				done += n;
+			}
+			return done;
+		} finally {
+			release(h);
+		}
+	}
+
+	@Override
+	public void close(FragmentSaver.FileEntry e)
+	{
+		close(e.pathname);
+	}
+
+	public void close(String pathname)
+	{
+		List<Handle> closed = new ArrayList<>();
+		synchronized(this) {
+			Handle h = handles.remove(pathname);
+			if(h != null)
+				retire(h, closed);
+		}
+		close(closed);
+	}
+
+	@Override
+	public void closeAll()
+	{
+		List<Handle> closed = new ArrayList<>();
+		synchronized(this) {
+			for(Handle h : handles.values())
+				retire(h, closed);
+			handles.clear();
+		}
+		close(closed);
+	}
+
+	public synchronized int getMaxOpenFiles()
+	{
+		return maxOpenFiles;
+	}
+
+	public void setMaxOpenFiles(int maxOpenFiles)
+	{
+		List<Handle> closed = new ArrayList<>();
+		synchronized(this) {
+			this.maxOpenFiles = Math.max(1, maxOpenFiles);
+			evict(closed);
+		}
+		close(closed);
+	}
+
+	public synchronized int getOpenFilesCount()
+	{
+		return handles.size();
+	}
+
+	public synchronized long getHitsCount()
+	{
+		return hitsCount;
+	}
+
+	public synchronized long getOpensCount()
+	{
+		return opensCount;
+	}
+
+	private Handle open(String pathname, boolean write) throws IOException
+	{
+		File f = new File(pathname);
+		if(!write && !f.isFile())
+			return null;
+
+		try {
+			return new Handle(pathname, new RandomAccessFile(f, "rw").getChannel(), true);
+		} catch(FileNotFoundException e) {
+			// a read-only file can still be seeded
+			if(write)
+				throw e;
+			return new Handle(pathname, new RandomAccessFile(f, "r").getChannel(), false);
+		}
+	}
+
+	// must hold the lock
+	private void evict(List<Handle> closed)
+	{
+		Iterator<Handle> it = handles.values().iterator();
+		while(handles.size() > maxOpenFiles && it.hasNext()) {
+			Handle h = it.next();
+			it.remove();
+			retire(h, closed);
+		}
+	}
+
+	// must hold the lock
+	private void retire(Handle h, List<Handle> closed)
+	{
+		h.retired = true;
+		if(h.users == 0)
+			closed.add(h);
+	}
+
+	private void close(List<Handle> closed)
+	{
+		for(Handle h : closed)
+			close(h);
+	}
+
+	private void close(Handle h)
+	{
+		try {
+			h.channel.close();
+		} catch(IOException e) {
+		}
+	}
+}
@@ -1,43 +1,127 @@
 package btclient;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FragmentSaver {
+	interface Waiter {
+		// returns false if the waiter is not interested anymore
+		public boolean queueDrained();
+	}
+	
 	public static class FileEntry {
+		public static final int PRIORITY_SKIP = 0;
+		public static final int PRIORITY_LOW = 1;
+		public static final int PRIORITY_NORMAL = 2;
+		public static final int PRIORITY_HIGH = 3;
+		
 		List<String> path;
 		long length;
 		String pathname;
+		volatile int priority;
+		// size and modification time when the torrent was saved, they are
+		// taken again only if the file was written since
+		long savedLength;
+		long savedModified;
+		volatile boolean dirty;
 		
 		FileEntry(List<String> path, long length)
 		{
 			this.path = path;
 			this.length = length;
+			priority = PRIORITY_NORMAL;
+			dirty = true;
+		}
+		
+		public List<String> getPath()
+		{
+			return path;
+		}
+		
+		public long getLength()
+		{
+			return length;
+		}
+		
+		public int getPriority()
+		{
+			return priority;
 		}
 	}
 	
-	private static class WriteRequest {
+	private static class Request {
+		long queuedTime = System.nanoTime();
+	}
+	
+	private static class WriteRequest extends Request {
 		int index;
 		int begin;
-		byte[] block;
+		ByteBuffer data;
+		boolean wholePiece;
 		
-		WriteRequest(int index, int begin, byte[] block)
+		WriteRequest(int index, int begin, ByteBuffer data, boolean wholePiece)
 		{
 			this.index = index;
 			this.begin = begin;
-			this.block = block;
+			this.data = data;
+			this.wholePiece = wholePiece;
+		}
+	}
+	
+	private static class ReadRequest extends Request {
+		int index;
+		
+		ReadRequest(int index)
+		{
+			this.index = index;
 		}
 	}
 	
+	// ends the disk thread once the requests before it are done
+	private static final Request STOP = new Request();
+	
+	// requests taken from the queue at once
+	private static final int MAX_BATCH = 64;
+	
+	public static final long DEFAULT_MAX_QUEUED_BYTES = 32l * 1024 * 1024;
+	
+	// how long the blocks of a piece nothing is received for stay in the cache
+	private static final long MAX_CACHE_IDLE = 10000;
+	private static final long IDLE_CHECK_INTERVAL = 1000;
+	
 	private Torrent tor;
 	private Pieces pieces;
 	private List<FileEntry> files;
-	private Queue<WriteRequest> writeRequests;
-	private Queue<Integer> readRequests;
+	// the writes and reads for the disk thread, in the order they came
+	private BlockingQueue<Request> requests;
+	
+	// bytes waiting for the disk, a write counts its data and a read the
+	// piece it allocates. peers stop reading while it is over the cap
+	private AtomicLong queuedBytes;
+	private volatile long maxQueuedBytes;
+	private Queue<Waiter> waiters;
+	private long peakQueuedBytes;
+	private long pausesCount;
+	private long waitTime;
+	private long maxWaitTime;
+	private long dequeuedCount;
+	private PieceVerifier verifier;
+	private FileCache fileCache;
+	private MappedStorage mappedStorage;
+	private volatile Storage storage;
+	private long maxMappedMemory = MappedStorage.DEFAULT_MAX_MAPPED_MEMORY;
+	private WriteCache writeCache;
 	
 	private Thread mainThread;
 	
@@ -46,160 +130,489 @@ public class FragmentSaver {
 		this.tor = tor;
 		pieces = tor.getPieces();
 		files = tor.getFiles();
-		writeRequests = new ConcurrentLinkedQueue<>();
-		readRequests = new ConcurrentLinkedQueue<>();
+		requests = new LinkedBlockingQueue<>();
+		queuedBytes = new AtomicLong();
+		maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+		waiters = new ArrayDeque<>();
+		verifier = PieceVerifier.getInstance();
+		fileCache = new FileCache(FileCache.DEFAULT_MAX_OPEN_FILES);
+		storage = fileCache;
+		writeCache = new WriteCache(pieces, WriteCache.DEFAULT_MAX_MEMORY);
 	
-		createFiles();
+		updatePaths();
 	}
 	
 	public void start()
 	{
+		updatePaths();
+		createFiles();
+		
 		mainThread = new Thread(new Runnable() {
 			@Override
 			public void run() 
-			{			
-				while(true) {
-					if(writeRequests.isEmpty() && readRequests.isEmpty()) {
-						if(Thread.currentThread().isInterrupted())
-							break;
-						
-						try {
-							Thread.sleep(1000);
-						} catch(InterruptedException e) {
-							Thread.currentThread().interrupt();
+			{
+				List<Request> batch = new ArrayList<>(MAX_BATCH);
+				long lastIdleCheck = System.currentTimeMillis();
+				boolean stopping = false;
+				
+				while(!stopping) {
+					try {
+						// wakes up for the idle check only if there is something to flush
+						Request req = writeCache.hasDirty() ? requests.poll(IDLE_CHECK_INTERVAL, TimeUnit.MILLISECONDS) : requests.take();
+						if(req != null) {
+							batch.add(req);
+							requests.drainTo(batch, MAX_BATCH - 1);
 						}
+					} catch(InterruptedException e) {
+						stopping = true;
 					}
 					
-					while(!writeRequests.isEmpty()) {
-						WriteRequest req = writeRequests.poll();
-					
-						long begin = (long)pieces.getPieceLength() * req.index + req.begin;
-						int off = 0;
-						for(FileEntry e : files) {
-							if(begin < e.length) {
-								try(RandomAccessFile file = new RandomAccessFile(e.pathname, "rw")) {
-									file.seek(begin);
-									int len = (int)Math.min(req.block.length-off, e.length-begin);
-									file.write(req.block, off, len);
-									off += len;
-									begin += len;
-								} catch(Exception ee) {
-									ee.printStackTrace();
-								}
-							}
-							
-							if(off == req.block.length)
-								break;
-							
-							begin -= e.length;
-						}
-					
-						pieces.writeFragmentCompleted(req.index, req.begin, req.block.length);
+					// the writes go first, the reads of a batch may depend on them
+					for(Request req : batch) {
+						if(req == STOP)
+							stopping = true;
+						else if(req instanceof WriteRequest)
+							write((WriteRequest)req);
 					}
-
-					while(!readRequests.isEmpty()) {
-						int index = readRequests.poll();
-						
-						byte[] piece = new byte[pieces.getPieceLength(index)];
-						long begin = (long)pieces.getPieceLength() * index;
-						int off = 0;
-						
-						for(FileEntry e : files) {
-							if(begin < e.length) {
-								try(RandomAccessFile file = new RandomAccessFile(e.pathname, "rw")) {
-									file.seek(begin);
-									int len = (int)Math.min(piece.length-off, e.length-begin);
-									file.readFully(piece, off, len);
-									off += len;
-									begin += len;
-								} catch(Exception ee) {
-									ee.printStackTrace();
-								}
-							}
-							
-							if(off == piece.length)
-								break;
-							
-							begin -= e.length;
-						}
-						
-						pieces.readPieceCompleted(index, piece);
+					for(Request req : batch) {
+						if(req instanceof ReadRequest)
+							read((ReadRequest)req);
+					}
+					batch.clear();
+					
+					// partial pieces nobody sends anymore
+					long now = System.currentTimeMillis();
+					if(now - lastIdleCheck >= IDLE_CHECK_INTERVAL) {
+						lastIdleCheck = now;
+						for(WriteCache.Entry e : writeCache.removeIdle(now - MAX_CACHE_IDLE))
+							flush(e);
 					}
 				}
+				
+				for(WriteCache.Entry e : writeCache.removeAll())
+					flush(e);
 			}	
 		}, tor + " fragment saver");
 		
 		mainThread.start();
 	}
 	
+	// the requests queued before are done first
 	public void stop()
 	{
-		mainThread.interrupt();
+		// called from the disk thread it would wait for itself
+		if(Thread.currentThread() == mainThread)
+			throw new IllegalStateException("stop called from the disk thread");
+		
+		requests.add(STOP);
 		try {
 			mainThread.join();
 		} catch (InterruptedException e) {
-			
+			// the disk thread may still be writing, so the files stay open
+			Thread.currentThread().interrupt();
+			return;
+		}
+		storage.closeAll();
+	}
+	
+	private void write(WriteRequest req)
+	{
+		dequeued(req.data.remaining(), req.queuedTime);
+		
+		if(req.wholePiece) {
+			long begin = (long)pieces.getPieceLength() * req.index;
+			writeData(begin, req.data.duplicate());
+			// the piece is still in memory, no need to read it back
+			pieces.writePieceCompleted(req.index);
+			verifier.verify(pieces, req.index, req.data.duplicate());
+		} else {
+			for(WriteCache.Entry e : writeCache.add(req.index, req.begin, req.data.array(), System.currentTimeMillis()))
+				flush(e);
+		}
+	}
+	
+	private void read(ReadRequest req)
+	{
+		int index = req.index;
+		dequeued(pieces.getPieceLength(index), req.queuedTime);
+		
+		byte[] data = writeCache.getPiece(index, false);
+		if(data != null) {
+			verifier.verify(pieces, index, ByteBuffer.wrap(data));
+			return;
 		}
+		
+		ByteBuffer piece = ByteBuffer.allocate(pieces.getPieceLength(index));
+		readData((long)pieces.getPieceLength() * index, piece);
+		piece.flip();
+		
+		verifier.verify(pieces, index, piece);
 	}
 	
 	public void writePieceFragment(int index, int begin, byte[] block)
 	{
-		writeRequests.add(new WriteRequest(index, begin, block));
+		queued(block.length);
+		requests.add(new WriteRequest(index, begin, ByteBuffer.wrap(block), false));
+	}
+	
+	public void writePiece(int index, ByteBuffer buffer)
+	{
+		queued(buffer.remaining());
+		requests.add(new WriteRequest(index, 0, buffer, true));
 	}
 	
 	
 	public void readPiece(int index)
 	{
-		readRequests.add(index);
+		queued(pieces.getPieceLength(index));
+		requests.add(new ReadRequest(index));
+	}
+	
+	// the data already received is always queued, the cap only holds back
+	// the peers
+	private void queued(long bytes)
+	{
+		long n = queuedBytes.addAndGet(bytes);
+		synchronized(waiters) {
+			if(n > peakQueuedBytes)
+				peakQueuedBytes = n;
+		}
+	}
+	
+	private void dequeued(long bytes, long queuedTime)
+	{
+		long n = queuedBytes.addAndGet(-bytes);
+		long wait = System.nanoTime() - queuedTime;
+		synchronized(waiters) {
+			waitTime += wait;
+			maxWaitTime = Math.max(maxWaitTime, wait);
+			++dequeuedCount;
+			// the peers go on when half of the queue is done, not after 
+			// every request
+			if(waiters.isEmpty() || n > maxQueuedBytes / 2)
+				return;
+		}
+		
+		while(true) {
+			Waiter w;
+			synchronized(waiters) {
+				w = waiters.poll();
+			}
+			if(w == null)
+				return;
+			w.queueDrained();
+		}
+	}
+	
+	public boolean isQueueFull()
+	{
+		return queuedBytes.get() > maxQueuedBytes;
+	}
+	
+	// returns false if there is room in the queue, otherwise the waiter is 
+	// notified when it drains
+	public boolean waitQueue(Waiter waiter)
+	{
+		synchronized(waiters) {
+			if(queuedBytes.get() <= maxQueuedBytes)
+				return false;
+			waiters.add(waiter);
+			++pausesCount;
+			return true;
+		}
+	}
+	
+	public long getMaxQueuedBytes()
+	{
+		return maxQueuedBytes;
+	}
+	
+	public void setMaxQueuedBytes(long maxQueuedBytes)
+	{
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+	
+	public long getQueuedBytes()
+	{
+		return queuedBytes.get();
+	}
+	
+	public int getQueuedRequestsCount()
+	{
+		return requests.size();
+	}
+	
+	public long getPeakQueuedBytes()
+	{
+		synchronized(waiters) {
+			return peakQueuedBytes;
+		}
+	}
+	
+	// how many times a peer was paused because of a full queue
+	public long getPausesCount()
+	{
+		synchronized(waiters) {
+			return pausesCount;
+		}
 	}
 	
+	// in milliseconds
+	public double getAverageQueueWait()
+	{
+		synchronized(waiters) {
+			return dequeuedCount == 0 ? 0 : waitTime / 1e6 / dequeuedCount;
+		}
+	}
 	
-	private void createFiles()
+	public double getMaxQueueWait()
 	{
+		synchronized(waiters) {
+			return maxWaitTime / 1e6;
+		}
+	}
+	
+	
+	// the files are looked up in the current download directory
+	public void updatePaths()
+	{
+		storage.closeAll();
 		for(FileEntry e : files) {
-			e.pathname = tor.getDownloadDirectory();
-			Iterator<String> it = e.path.iterator();
-			while(true) {
-				String name = it.next();
-				e.pathname += File.separator + name;
-				if(!it.hasNext()) {
-					try(RandomAccessFile file = new RandomAccessFile(e.pathname, "rw")) {
-						file.setLength(e.length);
-					} catch(Exception ee) {
-						ee.printStackTrace();
-					}
-					break;
-				}
-				
-				new File(e.pathname).mkdir();
+			String pathname = tor.getDownloadDirectory();
+			for(String name : e.path)
+				pathname += File.separator + name;
+			e.pathname = pathname;
+			e.dirty = true;
+		}
+	}
+	
+	// preallocates the selected files, skipped ones are only created if a 
+	// piece shared with a wanted file is written to them
+	public void createFiles()
+	{
+		for(FileEntry e : files) {
+			File f = new File(e.pathname);
+			f.getParentFile().mkdirs();
+			if(e.priority == FileEntry.PRIORITY_SKIP || (f.isFile() && f.length() == e.length))
+				continue;
+			
+			try(RandomAccessFile file = new RandomAccessFile(f, "rw")) {
+				file.setLength(e.length);
+			} catch(Exception ee) {
+				ee.printStackTrace();
 			}
+			e.dirty = true;
 		}
 	}
 
 	public byte[] readFrag(long begin, int length) 
 	{
 		byte[] ret = new byte[length];
-		int off = 0;
+		readFrag(begin, ByteBuffer.wrap(ret));
+		return ret;
+	}
+	
+	public void readFrag(long begin, ByteBuffer dst)
+	{
+		ByteBuffer b = getCached(begin, dst.remaining());
+		if(b != null)
+			dst.put(b);
+		else
+			readData(begin, dst);
+	}
+	
+	// the data if it is in a piece held by the write cache
+	private ByteBuffer getCached(long begin, int length)
+	{
+		int index = (int)(begin / pieces.getPieceLength());
+		int offset = (int)(begin - (long)index * pieces.getPieceLength());
+		if(index >= pieces.getCount() || offset + length > pieces.getPieceLength(index))
+			return null;
 		
+		byte[] data = writeCache.getPiece(index, true);
+		return data == null ? null : ByteBuffer.wrap(data, offset, length);
+	}
+	
+	// writes the blocks of the entry in runs of contiguous blocks, a whole 
+	// piece is kept in the cache
+	private void flush(WriteCache.Entry e)
+	{
+		long base = (long)pieces.getPieceLength() * e.index;
+		int frag = 0;
+		while(frag < e.blocks.length) {
+			if(e.blocks[frag] == null) {
+				++frag;
+				continue;
+			}
+			
+			int first = frag;
+			int length = 0;
+			while(frag < e.blocks.length && e.blocks[frag] != null)
+				length += e.blocks[frag++].length;
+			
+			byte[] data;
+			if(frag - first == 1) {
+				data = e.blocks[first];
+			} else {
+				data = new byte[length];
+				int pos = 0;
+				for(int i = first; i < frag; ++i) {
+					System.arraycopy(e.blocks[i], 0, data, pos, e.blocks[i].length);
+					pos += e.blocks[i].length;
+				}
+			}
+			
+			writeData(base + (long)first * Pieces.FRAG_LENGTH, ByteBuffer.wrap(data));
+			writeCache.flushed(length);
+			if(length == pieces.getPieceLength(e.index))
+				writeCache.putClean(e.index, data);
+			
+			for(int i = first; i < frag; ++i)
+				pieces.writeFragmentCompleted(e.index, i * Pieces.FRAG_LENGTH, e.blocks[i].length);
+		}
+	}
+	
+	private void writeData(long begin, ByteBuffer data)
+	{
 		for(FileEntry e : files) {
+			if(!data.hasRemaining())
+				break;
+			
 			if(begin < e.length) {
-				try(RandomAccessFile file = new RandomAccessFile(e.pathname, "rw")) {
-					file.seek(begin);
-					int len = (int)Math.min(ret.length-off, e.length-begin);
-					file.readFully(ret, off, len);
-					off += len;
-					begin += len;
-				} catch(Exception ee) {
+				int len = (int)Math.min(data.remaining(), e.length-begin);
+				ByteBuffer b = data.duplicate();
+				b.limit(b.position() + len);
+				try {
+					storage.write(e, begin, b);
+				} catch(IOException ee) {
 					ee.printStackTrace();
 				}
+				e.dirty = true;
+				data.position(data.position() + len);
+				begin += len;
 			}
 			
-			if(off == ret.length)
+			begin -= e.length;
+		}
+	}
+	
+	private void readData(long begin, ByteBuffer dst)
+	{
+		for(FileEntry e : files) {
+			if(!dst.hasRemaining())
 				break;
 			
+			if(begin < e.length) {
+				int len = (int)Math.min(dst.remaining(), e.length-begin);
+				ByteBuffer b = dst.duplicate();
+				b.limit(b.position() + len);
+				try {
+					// a skipped file may never have been written
+					storage.read(e, begin, b);
+				} catch(IOException ee) {
+					ee.printStackTrace();
+				}
+				dst.position(dst.position() + len);
+				begin += len;
+			}
+			
 			begin -= e.length;
 		}
+	}
+	
+	// a skipped file is not written anymore
+	public void closeFile(FileEntry e)
+	{
+		storage.close(e);
+	}
+	
+	// the files are mapped to memory instead of being read and written 
+	// through their channels
+	public synchronized void setMemoryMapped(boolean on)
+	{
+		if(on == (storage == mappedStorage))
+			return;
 		
-		return ret;
-	}	
+		Storage old = storage;
+		if(on) {
+			mappedStorage = new MappedStorage(maxMappedMemory);
+			storage = mappedStorage;
+		} else {
+			storage = fileCache;
+			mappedStorage = null;
+		}
+		old.closeAll();
+	}
+	
+	public boolean isMemoryMapped()
+	{
+		return storage == mappedStorage;
+	}
+	
+	public MappedStorage getMappedStorage()
+	{
+		return mappedStorage;
+	}
+	
+	public synchronized long getMaxMappedMemory()
+	{
+		return maxMappedMemory;
+	}
+	
+	// address space the mappings may use before the oldest are unmapped
+	public synchronized void setMaxMappedMemory(long maxMappedMemory)
+	{
+		this.maxMappedMemory = maxMappedMemory;
+		if(mappedStorage != null)
+			mappedStorage.setMaxMappedMemory(maxMappedMemory);
+	}
+	
+	public int getMaxOpenFiles()
+	{
+		return fileCache.getMaxOpenFiles();
+	}
+	
+	public void setMaxOpenFiles(int maxOpenFiles)
+	{
+		fileCache.setMaxOpenFiles(maxOpenFiles);
+	}
+	
+	public FileCache getFileCache()
+	{
+		return fileCache;
+	}
+	
+	public WriteCache getWriteCache()
+	{
+		return writeCache;
+	}
+	
+	// sends the data straight from the files to the channel, returns how many 
+	// bytes were written which may be less than length if the channel is full
+	public long transferFrag(long begin, int length, WritableByteChannel target) throws IOException
+	{
+		ByteBuffer b = getCached(begin, length);
+		if(b != null)
+			return target.write(b);
+		
+		long sent = 0;
+		
+		for(FileEntry e : files) {
+			if(begin < e.length) {
+				long len = Math.min(length-sent, e.length-begin);
+				long done = storage.transfer(e, begin, len, target);
+				sent += done;
+				if(done < len)
+					return sent;
+				begin += len;
+			}
+			
+			if(sent == length)
+				break;
+			
+			begin -= e.length;
+		}
+		
+		return sent;
+	}
 }
@@ -0,0 +1,372 @@
+package btclient;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// reads and writes the files through memory mappings. the files are mapped
+// in windows so files over 2 GB work, the least recently used windows are
+// flushed and unmapped when more than the budget is mapped. a window still
+// in use is unmapped when its last user releases it
+public class MappedStorage implements Storage {
+	static class Key {
+		final String pathname;
+		final long index;
+
+		Key(String pathname, long index)
+		{
+			this.pathname = pathname;
+			this.index = index;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if(!(o instanceof Key))
+				return false;
+			Key k = (Key)o;
+			return index == k.index && pathname.equals(k.pathname);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return pathname.hashCode() * 31 + (int)index;
+		}
+	}
+
+	static class Window {
+		final Key key;
+		final long start; // position of the window in the file
+		final MappedByteBuffer buffer;
+		final boolean writable;
+		int users;
+		boolean retired;
+
+		Window(Key key, long start, MappedByteBuffer buffer, boolean writable)
+		{
+			this.key = key;
+			this.start = start;
+			this.buffer = buffer;
+			this.writable = writable;
+		}
+
+		boolean contains(long pos)
+		{
+			return pos >= start && pos < start + buffer.capacity();
+		}
+	}
+
+	public static final int WINDOW_SIZE = 64 * 1024 * 1024;
+	public static final long DEFAULT_MAX_MAPPED_MEMORY = 1024l * 1024 * 1024;
+
+	private long maxMappedMemory;
+	private long mappedMemory;
+	private LinkedHashMap<Key, Window> windows;
+
+	private long hitsCount;
+	private long mapsCount;
+
+	public MappedStorage(long maxMappedMemory)
+	{
+		this.maxMappedMemory = maxMappedMemory;
+		windows = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	@Override
+	public void write(FragmentSaver.FileEntry e, long pos, ByteBuffer src) throws IOException
+	{
+		while(src.hasRemaining()) {
+			Window w = acquire(e, pos, true);
+			if(w == null)
+				throw new IOException("write past the end of " + e.pathname);
+			try {
+				ByteBuffer b = w.buffer.duplicate();
+				b.position((int)(pos - w.start));
+				int n = Math.min(b.remaining(), src.remaining());
+				ByteBuffer s = src.duplicate();
+				s.limit(s.position() + n);
+				b.put(s);
+				src.position(src.position() + n);
+				pos += n;
+			} finally {
+				release(w);
+			}
+		}
+	}
+
+	@Override
+	public boolean read(FragmentSaver.FileEntry e, long pos, ByteBuffer dst) throws IOException
+	{
+		boolean found = false;
+		while(dst.hasRemaining()) {
+			Window w = acquire(e, pos, false);
+			if(w == null)
+				break;
+			found = true;
+			try {
+				ByteBuffer b = w.buffer.duplicate();
+				b.position((int)(pos - w.start));
+				if(b.remaining() > dst.remaining())
+					b.limit(b.position() + dst.remaining());
+				pos += b.remaining();
+				dst.put(b);
+			} finally {
+				release(w);
+			}
+		}
+		// past the end of the file, like a channel read
+		return found || new File(e.pathname).isFile();
+	}
+
+	@Override
+	public long transfer(FragmentSaver.FileEntry e, long pos, long length, WritableByteChannel target) throws IOException
+	{
+		long done = 0;
+		while(done < length) {
+			Window w = acquire(e, pos + done, false);
+			if(w == null) {
+				if(done == 0 && !new File(e.pathname).isFile())
+					throw new FileNotFoundException(e.pathname);
+				break;
+			}
+			try {
+				ByteBuffer b = w.buffer.duplicate();
+				b.position((int)(pos + done - w.start));
+				if(b.remaining() > length - done)
+					b.limit((int)(b.position() + length - done));
+				int n = target.write(b);
+				done += n;
+				if(b.hasRemaining())
+					break;
+			} finally {
+				release(w);
+			}
+		}
+		return done;
+	}
+
+	@Override
+	public void close(FragmentSaver.FileEntry e)
+	{
+		List<Window> closed = new ArrayList<>();
+		synchronized(this) {
+			Iterator<Window> it = windows.values().iterator();
+			while(it.hasNext()) {
+				Window w = it.next();
+				if(w.key.pathname.equals(e.pathname)) {
+					it.remove();
+					retire(w, closed);
+				}
+			}
+		}
+		unmap(closed);
+	}
+
+	@Override
+	public void closeAll()
+	{
+		List<Window> closed = new ArrayList<>();
+		synchronized(this) {
+			for(Window w : windows.values())
+				retire(w, closed);
+			windows.clear();
+		}
+		unmap(closed);
+	}
+
+	public synchronized long getMaxMappedMemory()
+	{
+		return maxMappedMemory;
+	}
+
+	public void setMaxMappedMemory(long maxMappedMemory)
+	{
+		List<Window> closed = new ArrayList<>();
+		synchronized(this) {
+			this.maxMappedMemory = maxMappedMemory;
+			evict(closed);
+		}
+		unmap(closed);
+	}
+
+	public synchronized long getMappedMemory()
+	{
+		return mappedMemory;
+	}
+
+	public synchronized long getHitsCount()
+	{
+		return hitsCount;
+	}
+
+	public synchronized long getMapsCount()
+	{
+		return mapsCount;
+	}
+
+	// the window holding pos, null if there is no data there. the window
+	// has to be given back with release()
+	private Window acquire(FragmentSaver.FileEntry e, long pos, boolean write) throws IOException
+	{
+		if(pos >= e.length)
+			return null;
+
+		Key key = new Key(e.pathname, pos / WINDOW_SIZE);
+		List<Window> closed = new ArrayList<>();
+		Window w;
+		synchronized(this) {
+			w = windows.get(key);
+			if(w != null && (write && !w.writable || !w.contains(pos))) {
+				// mapped read-only or before the file grew, it is mapped again
+				windows.remove(key);
+				retire(w, closed);
+				w = null;
+			}
+
+			if(w != null) {
+				++hitsCount;
+			} else {
+				w = map(e, key, write);
+				if(w != null) {
+					++mapsCount;
+					windows.put(key, w);
+					mappedMemory += w.buffer.capacity();
+					evict(closed);
+				}
+			}
+			if(w != null && !w.contains(pos))
+				w = null; // the file is shorter
+			if(w != null)
+				++w.users;
+		}
+
+		unmap(closed);
+		return w;
+	}
+
+	private void release(Window w)
+	{
+		boolean unmap;
+		synchronized(this) {
+			unmap = --w.users == 0 && w.retired;
+		}
+		if(unmap)
+			unmap(w);
+	}
+
+	// the mapping stays valid after the file is closed
+	private Window map(FragmentSaver.FileEntry e, Key key, boolean write) throws IOException
+	{
+		File f = new File(e.pathname);
+		if(!write && !f.isFile())
+			return null;
+
+		long start = key.index * WINDOW_SIZE;
+		long size = Math.min(WINDOW_SIZE, e.length - start);
+		RandomAccessFile file;
+		boolean writable = true;
+		try {
+			file = new RandomAccessFile(f, "rw");
+		} catch(FileNotFoundException ee) {
+			// a read-only file can still be seeded
+			if(write)
+				throw ee;
+			file = new RandomAccessFile(f, "r");
+			writable = false;
+		}
+
+		try {
+			FileChannel fc = file.getChannel();
+			if(!write)
+				size = Math.min(size, fc.size() - start);
+			if(size <= 0)
+				return null;
+			// a read-write mapping grows the file as needed
+			MappedByteBuffer b = fc.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, start, size);
+			return new Window(key, start, b, writable);
+		} finally {
+			file.close();
+		}
+	}
+
+	// must hold the lock, the last window is kept even if it is over budget
+	private void evict(List<Window> closed)
+	{
+		Iterator<Window> it = windows.values().iterator();
+		while(mappedMemory > maxMappedMemory && windows.size() > 1 && it.hasNext()) {
+			Window w = it.next();
+			it.remove();
+			retire(w, closed);
+		}
+	}
+
+	// must hold the lock
+	private void retire(Window w, List<Window> closed)
+	{
+		w.retired = true;
+		mappedMemory -= w.buffer.capacity();
+		if(w.users == 0)
+			closed.add(w);
+	}
+
+	private void unmap(List<Window> closed)
+	{
+		for(Window w : closed)
+			unmap(w);
+	}
+
+	private void unmap(Window w)
+	{
+		if(w.writable)
+			w.buffer.force();
+		Unmapper.unmap(w.buffer);
+	}
+
+	// there is no public way to unmap a buffer before it is garbage collected.
+	// on java 9 and newer Unsafe.invokeCleaner() does it, on java 8 the
+	// cleaner of the buffer. if neither works the mapping is left to the gc
+	static class Unmapper {
+		private static Object unsafe;
+		private static Method invokeCleaner;
+
+		static {
+			try {
+				Class<?> c = Class.forName("sun.misc.Unsafe");
+				Field f = c.getDeclaredField("theUnsafe");
+				f.setAccessible(true);
+				unsafe = f.get(null);
+				invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+			} catch(Exception e) {
+				invokeCleaner = null;
+			}
+		}
+
+		static void unmap(MappedByteBuffer b)
+		{
+			try {
+				if(invokeCleaner != null) {
+					invokeCleaner.invoke(unsafe, b);
+				} else {
+					Method m = b.getClass().getMethod("cleaner");
+					m.setAccessible(true);
+					Object cleaner = m.invoke(b);
+					if(cleaner != null)
+						cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			} catch(Exception e) {
+			}
+		}
+	}
+}
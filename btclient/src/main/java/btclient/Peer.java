@@ -6,13 +6,15 @@ import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import btclient.Pieces.PeerFrag;
 import btclient.Pieces.PieceFrag;
 import btclient.Pieces.PieceSelector;
 
 
-public class Peer {
+public class Peer implements PeerReactor.Handler, BufferPool.Waiter, FragmentSaver.Waiter {
 	private Torrent tor;
 	private InetSocketAddress addr;
 	
@@ -23,9 +25,11 @@ public class Peer {
 	private BitSet bs;
 	
 	private boolean amChoking;
+	// what the choker decided, amChoking follows once the message is queued
+	private volatile boolean choked;
 	private boolean amInterested;
-	private boolean peerChoking;
-	private boolean peerInterested;
+	private volatile boolean peerChoking;
+	private volatile boolean peerInterested;
 	
 	private List<Pieces.PieceFrag> requestedFrags;
 	private List<Pieces.PieceFrag> canceledRequests; 
@@ -36,28 +40,90 @@ public class Peer {
 	
 	private List<Pieces.PeerFrag> peerRequestedFrags;
 	
+	// either a buffer or a block sent straight from the file
+	private static class Frame {
+		ByteBuffer buffer;
+		boolean payload;
+		Pieces.PeerFrag upload;
+		int uploadSent;
+		
+		Frame(ByteBuffer buffer, boolean payload)
+		{
+			this.buffer = buffer;
+			this.payload = payload;
+		}
+		
+		Frame(Pieces.PeerFrag upload)
+		{
+			this.upload = upload;
+			uploadSent = 0;
+		}
+	}
+	
+	private Deque<Frame> outbound;
+	private ByteBuffer[] gatherBuffers;
+	private int[] gatherRemaining;
+	private boolean waitingForBuffer;
+	
+	private static final int MAX_GATHER = 16;
+	private static final int MAX_QUEUED_FRAGMENTS = 4;
+	
 	private long downloadCount;
 	
 	private long lastMessageTime;
 	
-	private boolean oneDownloaded;
 	
 	private SelectionKey key;
 	private SocketChannel channel;
 	
+	private BufferPool bufferPool;
+	
+	// borrowed from the buffer pool only while a message is partly read or written,
+	// small outgoing messages are appended to sendBuffer before it is queued
 	private ByteBuffer sendBuffer;
 	private ByteBuffer recvBuffer;
+	private int maxMessageLength;
 	
-	private static final int BUFFER_SIZE = (1<<14) + 100;
+	// view of the piece buffer the current block is received to
+	private ByteBuffer blockTarget;
+	private Pieces.PieceFrag blockTargetFrag;
 	
-	private static final int HANDSHAKE_LEN = 68;
+	private AtomicInteger waitingOps;
+	// reading is paused until the disk queue drains
+	private AtomicBoolean waitingForDisk;
+	
+	public static final int HANDSHAKE_LEN = 68;
+	public static final String PROTOCOL = "BitTorrent protocol";
 	private boolean receivedHandshake;
+	private boolean inbound;
+	
+	private volatile boolean connected;
+	
+	// ops dropped until the bandwidth shaper has tokens again
+	private int throttledOps;
+	private BandwidthShaper shaper;
 	
-	private boolean connected;
+	public static final int MIN_REQUESTED_FRAGS = 4;
+	public static final int INITIAL_REQUESTED_FRAGS = 8;
+	public static final int MAX_REQUESTED_FRAGS = 250;
 	
-	private int currentRecvMessage;
+	private static final long LATENCY_WINDOW = 10000000000l;
 	
-	public static final int MAX_REQUESTED_FRAGS = 8;
+	// a request is given to someone else if it is not answered in time
+	private static final long MIN_REQUEST_TIMEOUT = 15000000000l;
+	private static final long TIMEOUT_CHECK_INTERVAL = 1000000000l;
+	// blocks of canceled requests are still accepted for this long
+	private static final long CANCELED_LIFETIME = 60000000000l;
+	
+	// the request pipeline is sized from the bandwidth-delay product
+	private volatile int maxRequests;
+	private RateMeter downloadRate;
+	private RateMeter uploadRate;
+	private volatile long latency;
+	private long baseLatency;
+	private long windowMinLatency;
+	private long prevWindowMinLatency;
+	private long latencyWindowStart;
 	
 	public Peer(Torrent tor, SelectionKey key) 
 	{
@@ -78,30 +144,75 @@ public class Peer {
 			}
 		} catch(IOException e) {
 			//System.err.println(this + "connect(): " + e.getMessage());
+			key.cancel();
+			try {
+				channel.close();
+			} catch(IOException ee) {
+			}
 			return;
 		}
 		
 		//System.err.println(this + "connect successful");
 		
+		init();
+		sendHandshake();
+	}
+	
+	// for incoming connections, the handshake was already received 
+	public Peer(Torrent tor, SelectionKey key, byte[] handshake)
+	{
+		this.tor = tor;
+		connected = false;
+		this.key = key;
+		channel = (SocketChannel)key.channel();
+		try {
+			addr = (InetSocketAddress)channel.getRemoteAddress();
+		} catch(IOException e) {
+			return;
+		}
+		
+		init();
+		sendHandshake();
+		if(!connected)
+			return;
+		
+		receivedHandshake = true;
+		inbound = true;
+		tor.incrementPeersCount();
+		sendBitfield();
+		addInterest(SelectionKey.OP_WRITE);
+	}
+	
+	private void init()
+	{
 		connected = true;
 		key.interestOps(SelectionKey.OP_READ);
 		
 		pieces = tor.getPieces();
 		piecesCount = pieces.getCount();
 		streaming = tor.isStreaming();
-		pieceSelector = (streaming ? getStreamingSelector() : getRandomSelector());
+		pieceSelector = (streaming ? getStreamingSelector() : getRarestFirstSelector());
 		bs = new BitSet(piecesCount);
 		
 		amChoking = true;
+		choked = true;
 		amInterested = false;
 		peerChoking = true;
 		peerInterested = false;
 		
-		sendBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-		recvBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		bufferPool = BufferPool.getInstance();
+		shaper = BandwidthShaper.getInstance();
+		throttledOps = 0;
+		maxMessageLength = Math.max(bufferPool.getBufferSize(), 1 + (piecesCount+7)/8);
+		waitingOps = new AtomicInteger();
+		waitingForDisk = new AtomicBoolean();
+		outbound = new ArrayDeque<>();
+		gatherBuffers = new ByteBuffer[MAX_GATHER];
+		gatherRemaining = new int[MAX_GATHER];
+		waitingForBuffer = false;
 	
-		requestedFrags = new ArrayList<Pieces.PieceFrag>(MAX_REQUESTED_FRAGS);
-		canceledRequests = new ArrayList<Pieces.PieceFrag>(2*MAX_REQUESTED_FRAGS);
+		requestedFrags = new ArrayList<Pieces.PieceFrag>(INITIAL_REQUESTED_FRAGS);
+		canceledRequests = new ArrayList<Pieces.PieceFrag>(2*INITIAL_REQUESTED_FRAGS);
 		peerRequestedFrags = new ArrayList<Pieces.PeerFrag>();
 		
 		trusted = false;
@@ -109,20 +220,24 @@ public class Peer {
 		
 		downloadCount = 0;
 		
-		sendHandshake();
-		recvBuffer.clear();
-		recvBuffer.limit(HANDSHAKE_LEN);
-	
-		key.attach(this);
+		maxRequests = INITIAL_REQUESTED_FRAGS;
+		downloadRate = new RateMeter();
+		uploadRate = new RateMeter();
+		latency = 0;
+		baseLatency = Long.MAX_VALUE;
+		windowMinLatency = Long.MAX_VALUE;
+		prevWindowMinLatency = Long.MAX_VALUE;
+		latencyWindowStart = System.nanoTime();
 		
-		currentRecvMessage = -1;
+		key.attach(this);
+		scheduleTimeoutCheck();
 	}
 	
 	private void sendHandshake()
 	{
-		sendBuffer.clear();
+		sendBuffer = ByteBuffer.allocate(HANDSHAKE_LEN);
 		sendBuffer.put((byte)19);
-		sendBuffer.put("BitTorrent protocol".getBytes());
+		sendBuffer.put(PROTOCOL.getBytes());
 		sendBuffer.put(new byte[8]);
 		sendBuffer.put(tor.getInfoHash());
 		sendBuffer.put(tor.getPeerId());
@@ -135,9 +250,11 @@ public class Peer {
 			endConnection();
 			return;
 		}
+		sendBuffer = null;
 	}
 	
-	public void process()
+	@Override
+	public synchronized void process(SelectionKey key)
 	{
 		if(!connected)
 			return;
@@ -157,6 +274,12 @@ public class Peer {
 		}
 	}
 	
+	@Override
+	public void fail(SelectionKey key, RuntimeException e)
+	{
+		endConnection();
+	}
+	
 	
 	private static final int messageChoke = 0;
 	private static final int messageUnchoke = 1;
@@ -171,17 +294,69 @@ public class Peer {
 	
 	private void receiveMessages() throws IOException
 	{				
-		if(!receivedHandshake) {
+		while(true) {
+			if(diskQueueFull())
+				return;
+			
+			long quota = downloadQuota();
+			if(quota <= 0) {
+				throttle(SelectionKey.OP_READ, BandwidthShaper.delay(tor.getDownloadBucket(), shaper.getDownloadBucket()));
+				return;
+			}
+			
+			if(blockTarget != null) {
+				// payload of a piece message goes straight into the piece buffer
+				int limit = blockTarget.limit();
+				if(blockTarget.remaining() > quota)
+					blockTarget.limit(blockTarget.position() + (int)quota);
+				int nread = channel.read(blockTarget);
+				blockTarget.limit(limit);
+				if(nread == -1)
+					throw new IOException("peer ended connection");
+				downloaded(nread);
+				tor.increaseDownloaded(nread);
+				if(blockTarget.hasRemaining())
+					return;
+				
+				receivedBlock();
+				continue;
+			}
+			
+			if(recvBuffer == null) {
+				recvBuffer = acquireBuffer(SelectionKey.OP_READ, bufferPool.getBufferSize());
+				if(recvBuffer == null)
+					return;
+			}
+			
+			if(recvBuffer.remaining() > quota)
+				recvBuffer.limit(recvBuffer.position() + (int)quota);
 			int nread = channel.read(recvBuffer);
-			if(nread == -1)
+			recvBuffer.limit(recvBuffer.capacity());
+			if(nread == -1) {
 				throw new IOException("peer ended connection");
-			if(recvBuffer.hasRemaining())
+			}
+			downloaded(nread);
+			
+			recvBuffer.flip();
+			parseMessages();
+			recvBuffer.compact();
+			
+			if(recvBuffer.position() == 0)
+				releaseRecvBuffer();
+			
+			if(nread == 0)
+				return;
+		}
+	}
+	
+	private void parseMessages() throws IOException
+	{
+		if(!receivedHandshake) {
+			if(recvBuffer.remaining() < HANDSHAKE_LEN)
 				return;
 			
 			verifyHandshake();
 			receivedHandshake = true;
-			recvBuffer.clear();
-			recvBuffer.limit(0);
 			
 			tor.incrementPeersCount();
 			
@@ -189,52 +364,301 @@ public class Peer {
 			
 			sendBitfield();
 			
-			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			addInterest(SelectionKey.OP_WRITE);
 		}
 		
-		while(!tor.maxDownloadSpeedExceeded()) {
-			if(recvBuffer.limit() == 0)
-				recvBuffer.limit(4);
-			
-			int nread = channel.read(recvBuffer);
-			if(nread == -1) {
-				throw new IOException("peer ended connection");
+		while(blockTarget == null && recvBuffer.remaining() >= 4) {
+			int start = recvBuffer.position();
+			int len = recvBuffer.getInt(start);
+			if(len == 0) {
+				//System.err.println(this + "received keep-alive");
+				recvBuffer.position(start + 4);
+				continue;
 			}
+			if(len < 0 || len > maxMessageLength)
+				throw new IOException("invalid message length");
 			
-			if(recvBuffer.position() < 4)
-				return;
-			
-			int curPosition = recvBuffer.position();
-			recvBuffer.position(0);
-			int len = recvBuffer.getInt();
-			if(recvBuffer.hasRemaining()) {
-				currentRecvMessage = recvBuffer.get();
+			if(len > 9 && recvBuffer.remaining() >= 13 && recvBuffer.get(start + 4) == messagePiece) {
+				if(startBlock(start, len))
+					continue;
 			}
-			recvBuffer.position(curPosition);
-			recvBuffer.limit(len+4);
 			
-			if(currentRecvMessage == messagePiece)
-				tor.increaseDownloaded(nread);
-			
-			if(recvBuffer.hasRemaining())
+			if(recvBuffer.remaining() < 4 + len) {
+				if(4 + len > recvBuffer.capacity()) {
+					// message does not fit into a pooled buffer
+					ByteBuffer b = ByteBuffer.allocate(4 + len);
+					b.put(recvBuffer);
+					b.flip();
+					releaseRecvBuffer();
+					recvBuffer = b;
+				}
 				return;
+			}
 			
-			parseMessage();		
-			recvBuffer.clear();
-			recvBuffer.limit(0);
-			currentRecvMessage = -1;
+			int limit = recvBuffer.limit();
+			recvBuffer.position(start + 4);
+			recvBuffer.limit(start + 4 + len);
+			if(recvBuffer.get(start + 4) == messagePiece)
+				tor.increaseDownloaded(4 + len);
+			parseMessage();
+			recvBuffer.limit(limit);
+			recvBuffer.position(start + 4 + len);
 		}
 	}
 	
-	void parseMessage() throws IOException
+	// tries to receive the payload of the piece message directly into the piece
+	// buffer, returns false if the message has to be parsed in the usual way
+	private boolean startBlock(int start, int len) throws IOException
+	{
+		int index = recvBuffer.getInt(start + 5);
+		int begin = recvBuffer.getInt(start + 9);
+		int length = len - 9;
+		if(index < 0 || index >= piecesCount || begin < 0 || begin % Pieces.FRAG_LENGTH != 0)
+			throw new IOException("invalid piece message");
+		
+		Pieces.PieceFrag f = new Pieces.PieceFrag(index, begin/Pieces.FRAG_LENGTH);
+		if(f.frag >= pieces.getPieceFragCount(index) || length != pieces.getFragLength(f))
+			throw new IOException("invalid fragment length");
+		// a late block is dropped in the usual way
+		if(!requestedFrags.contains(f) && !canceledRequests.contains(f))
+			return false;
+		
+		ByteBuffer target = pieces.getBlockBuffer(f);
+		if(target == null)
+			return false;
+		
+		f = removeRequest(f);
+		
+		recvBuffer.position(start + 13);
+		int n = Math.min(length, recvBuffer.remaining());
+		ByteBuffer src = recvBuffer.duplicate();
+		src.limit(src.position() + n);
+		target.put(src);
+		recvBuffer.position(recvBuffer.position() + n);
+		tor.increaseDownloaded(13 + n);
+		
+		blockTarget = target;
+		blockTargetFrag = f;
+		if(!target.hasRemaining())
+			receivedBlock();
+		return true;
+	}
+	
+	private void receivedBlock()
+	{
+		Pieces.PieceFrag f = blockTargetFrag;
+		blockTarget = null;
+		blockTargetFrag = null;
+		
+		blockArrived(f, pieces.receivedBlock(f, this));
+		
+		addInterest(SelectionKey.OP_WRITE);
+	}
+	
+	private Pieces.PieceFrag removeRequest(Pieces.PieceFrag f)
+	{
+		int i = requestedFrags.indexOf(f);
+		if(i != -1)
+			return requestedFrags.remove(i);
+		
+		i = canceledRequests.indexOf(f);
+		if(i != -1)
+			return canceledRequests.remove(i);
+		return null;
+	}
+	
+	private void blockArrived(Pieces.PieceFrag f, boolean useful)
+	{
+		int length = pieces.getFragLength(f);
+		downloadRate.add(length);
+		
+		if(useful)
+			downloadCount += length;
+		else
+			tor.increaseWasted(length);
+		
+		long now = System.nanoTime();
+		if(f.requestTime != 0)
+			updateLatency(now, now - f.requestTime);
+		updateQueueDepth();
+	}
+	
+	private void updateLatency(long now, long sample)
+	{
+		latency = (latency == 0 ? sample : (7*latency + sample) / 8);
+		
+		// queueing at the peer inflates the samples, so the minimum over 
+		// the last two windows is taken as the path latency
+		if(now - latencyWindowStart > LATENCY_WINDOW) {
+			prevWindowMinLatency = windowMinLatency;
+			windowMinLatency = Long.MAX_VALUE;
+			latencyWindowStart = now;
+		}
+		windowMinLatency = Math.min(windowMinLatency, sample);
+		baseLatency = Math.min(windowMinLatency, prevWindowMinLatency);
+	}
+	
+	private void updateQueueDepth()
+	{
+		double rate = downloadRate.get();
+		if(rate == 0 || baseLatency == Long.MAX_VALUE)
+			return;
+		
+		// keep some headroom over the measured product so the queue can
+		// grow until the link and not the pipeline is the limit
+		double bdp = rate * baseLatency / 1e9;
+		int depth = (int)(1.5 * bdp / Pieces.FRAG_LENGTH) + 2;
+		maxRequests = Math.max(MIN_REQUESTED_FRAGS, Math.min(MAX_REQUESTED_FRAGS, depth));
+	}
+	
+	private long downloadQuota()
+	{
+		return BandwidthShaper.quota(tor.getDownloadBucket(), shaper.getDownloadBucket());
+	}
+	
+	private long uploadQuota()
+	{
+		return BandwidthShaper.quota(tor.getUploadBucket(), shaper.getUploadBucket());
+	}
+	
+	private void downloaded(long n)
 	{
-		int len = recvBuffer.limit()-4;
-		if(len == 0) {
-			//System.err.println(this + "received keep-alive");
+		BandwidthShaper.consume(tor.getDownloadBucket(), shaper.getDownloadBucket(), n);
+	}
+	
+	private void uploaded(long n)
+	{
+		BandwidthShaper.consume(tor.getUploadBucket(), shaper.getUploadBucket(), n);
+	}
+	
+	// stops selecting the ops until the buckets are refilled, the channel is 
+	// not polled in the meantime
+	private void throttle(int ops, long delay)
+	{
+		removeInterest(ops);
+		if(throttledOps != 0) {
+			throttledOps |= ops;
 			return;
 		}
 		
-		recvBuffer.position(4);
+		throttledOps = ops;
+		tor.getReactor().schedule(key, delay, new Runnable() {
+			@Override
+			public void run()
+			{
+				unthrottle();
+			}
+		});
+	}
+	
+	private synchronized void unthrottle()
+	{
+		int ops = throttledOps;
+		throttledOps = 0;
+		if(connected)
+			addInterest(ops);
+	}
+	
+	private ByteBuffer acquireBuffer(int ops, int size)
+	{
+		if(size > bufferPool.getBufferSize())
+			return ByteBuffer.allocate(size);
+		
+		ByteBuffer b = bufferPool.acquire();
+		if(b != null)
+			return b;
+		
+		// stop selecting until the pool calls bufferAvailable()
+		removeInterest(ops);
+		waitingOps.accumulateAndGet(ops, (x, y) -> x | y);
+		b = bufferPool.acquire(this);
+		if(b != null)
+			addInterest(waitingOps.getAndSet(0) | ops);
+		return b;
+	}
+	
+	// the disk can't keep up, the blocks are left in the socket until the
+	// queue of the fragment saver drains
+	private boolean diskQueueFull()
+	{
+		FragmentSaver saver = tor.getFragmentSaver();
+		if(!saver.isQueueFull())
+			return false;
+		
+		removeInterest(SelectionKey.OP_READ);
+		if(waitingForDisk.get())
+			return true;
+		
+		waitingForDisk.set(true);
+		if(saver.waitQueue(this))
+			return true;
+		
+		waitingForDisk.set(false);
+		addInterest(SelectionKey.OP_READ);
+		return false;
+	}
+	
+	@Override
+	public boolean queueDrained()
+	{
+		waitingForDisk.set(false);
+		if(!connected)
+			return false;
+		
+		// the requests held back are sent too
+		addInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		key.selector().wakeup();
+		return true;
+	}
+	
+	private void releaseRecvBuffer()
+	{
+		releaseBuffer(recvBuffer);
+		recvBuffer = null;
+	}
+	
+	private void releaseBuffer(ByteBuffer b)
+	{
+		// heap buffers were allocated for oversized messages and are not pooled
+		if(b != null && b.isDirect())
+			bufferPool.release(b);
+	}
+	
+	@Override
+	public boolean bufferAvailable()
+	{
+		int ops = waitingOps.getAndSet(0);
+		if(!connected || ops == 0)
+			return false;
+		
+		addInterest(ops);
+		key.selector().wakeup();
+		return true;
+	}
+	
+	private void addInterest(int ops)
+	{
+		synchronized(key) {
+			try {
+				key.interestOps(key.interestOps() | ops);
+			} catch(CancelledKeyException e) {
+			}
+		}
+	}
+	
+	private void removeInterest(int ops)
+	{
+		synchronized(key) {
+			try {
+				key.interestOps(key.interestOps() & ~ops);
+			} catch(CancelledKeyException e) {
+			}
+		}
+	}
+	
+	void parseMessage() throws IOException
+	{
+		int len = recvBuffer.remaining();
 		int id = recvBuffer.get();
 		switch(id) {
 		case messageChoke:
@@ -293,7 +717,6 @@ public class Peer {
 	private void verifyHandshake() throws IOException
 	{
 		byte[] handshake = new byte[HANDSHAKE_LEN];
-		recvBuffer.position(0);
 		recvBuffer.get(handshake);
 						
 		if(!Arrays.equals(tor.getInfoHash(), Arrays.copyOfRange(handshake, 28, 48))) 
@@ -303,20 +726,71 @@ public class Peer {
 	private void receivedChoke()
 	{
 		peerChoking = true;
+		reclaimRequests();
+	}
+	
+	// gives the outstanding requests back to the selectors, blocks that still 
+	// arrive for them are accepted
+	private void reclaimRequests()
+	{
+		if(requestedFrags.isEmpty())
+			return;
+		tor.increaseReclaimedRequests(pieces.pieceReceiveFailed(requestedFrags));
 		canceledRequests.addAll(requestedFrags);
 		requestedFrags.clear();
 	}
 	
+	private void scheduleTimeoutCheck()
+	{
+		tor.getReactor().schedule(key, TIMEOUT_CHECK_INTERVAL, new Runnable() {
+			@Override
+			public void run()
+			{
+				checkRequestTimeouts();
+			}
+		});
+	}
+	
+	private synchronized void checkRequestTimeouts()
+	{
+		if(!connected)
+			return;
+		
+		long now = System.nanoTime();
+		long timeout = Math.max(MIN_REQUEST_TIMEOUT, 4*latency);
+		int timedOut = 0;
+		for(Pieces.PieceFrag f : requestedFrags) {
+			if(now - f.requestTime > timeout)
+				++timedOut;
+		}
+		
+		if(timedOut > 0) {
+			// the peer stalled, whatever it holds goes to faster peers
+			tor.increaseTimedOutRequests(timedOut);
+			reclaimRequests();
+			maxRequests = MIN_REQUESTED_FRAGS;
+			addInterest(SelectionKey.OP_WRITE);
+		}
+		
+		Iterator<Pieces.PieceFrag> it = canceledRequests.iterator();
+		while(it.hasNext()) {
+			if(now - it.next().requestTime > CANCELED_LIFETIME)
+				it.remove();
+		}
+		
+		scheduleTimeoutCheck();
+	}
+	
 	private void receivedUnchoke()
 	{
 		peerChoking = false;
-		key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		addInterest(SelectionKey.OP_WRITE);
 	}
 	
 	private void receivedInterested()
 	{
 		peerInterested = true;
-		key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		addInterest(SelectionKey.OP_WRITE);
 	}
 	
 	private void receivedNotInterested()
@@ -327,16 +801,16 @@ public class Peer {
 	private void receivedHave() throws IOException
 	{
 		int pieceIndex = recvBuffer.getInt();
-		try {
-			bs.set(pieceIndex);
-			pieceSelector.addPiece(pieceIndex);
-		} catch(IndexOutOfBoundsException e) {
+		if(pieceIndex < 0 || pieceIndex >= piecesCount)
 			throw new IOException("have message invalid piece index");
+		if(!bs.get(pieceIndex)) {
+			bs.set(pieceIndex);
+			pieces.getPicker().increment(pieceIndex);
 		}
 		//System.err.println(this + "received have " + pieceIndex);
 		
 		if(!pieces.isVerified(pieceIndex))
-			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			addInterest(SelectionKey.OP_WRITE);
 	}
 	
 	private boolean bitfieldReceived = false;
@@ -355,11 +829,10 @@ public class Peer {
 		recvBuffer.get(bitfield);
 
 		for(int i = 0; i < piecesCount; ++i) {
-			if(( bitfield[i/8] & (1 << (7-(i&7))) ) != 0) {
+			if(( bitfield[i/8] & (1 << (7-(i&7))) ) != 0)
 				bs.set(i);
-				pieceSelector.addPiece(i);
-			}
 		}
+		pieces.getPicker().addPeer(bs);
 		
 		int piecesCountRound = (piecesCount+7)/8*8;
 		for(int i = piecesCount; i < piecesCountRound; ++i) {
@@ -370,7 +843,7 @@ public class Peer {
 		
 		//System.err.println(this + "bitfield received");
 	
-		key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		addInterest(SelectionKey.OP_WRITE);
 	}
 	
 	private void receivedPiece(int len) throws IOException
@@ -378,30 +851,29 @@ public class Peer {
 		int index = recvBuffer.getInt();
 		int begin = recvBuffer.getInt();
 		int length = len-8;
+		if(index < 0 || index >= piecesCount || begin < 0 || begin % Pieces.FRAG_LENGTH != 0)
+			throw new IOException("invalid piece message");
 		Pieces.PieceFrag f = new Pieces.PieceFrag(index, begin/Pieces.FRAG_LENGTH);
+		if(f.frag >= pieces.getPieceFragCount(index) || length != pieces.getFragLength(f))
+			throw new IOException("invalid fragment length");
 		
-		if(!requestedFrags.remove(f)) {
-			if(!canceledRequests.remove(f)) {
-				throw new IOException("didnt request such fragment");
-			}
+		// a slow peer may still send what we canceled or choked it for long 
+		// ago, the block is not needed anymore
+		Pieces.PieceFrag requested = removeRequest(f);
+		if(requested == null) {
+			tor.increaseWasted(length);
+			return;
 		}
-				
-		if(length != pieces.getFragLength(f))
-			throw new IOException("invalid fragment length");
+		f = requested;
 		
 		byte[] block = new byte[length];
 		recvBuffer.get(block);
 		
-		if(!pieces.haveFrag(f)) {
-			pieces.receivedFragment(f, block);
-			downloadCount += pieces.getFragLength(f);
-			if(downloadCount >= pieces.getPieceLength())
-				oneDownloaded = true;
-			
-			//System.err.println(this + "received piece " + f.index + "," + f.frag);
-		}
+		// another peer may hold the lease on the block
+		boolean useful = pieces.receivedFragment(f, block, this);
+		blockArrived(f, useful);
 		
-		key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		addInterest(SelectionKey.OP_WRITE);
 	}
 	
 	private void receivedRequest()
@@ -409,12 +881,12 @@ public class Peer {
 		int index = recvBuffer.getInt();
 		int begin = recvBuffer.getInt();
 		int length = recvBuffer.getInt();
-		if(pieces.validFragToSend(index, begin, length)) {
+		if(!amChoking && pieces.validFragToSend(index, begin, length)) {
 			peerRequestedFrags.add(new Pieces.PeerFrag(index, begin, length));
 		}
 		//System.err.println(this + "received request " + index + "," + begin/Pieces.FRAG_LENGTH);
 		
-		key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		addInterest(SelectionKey.OP_WRITE);
 	}
 	
 	private void receivedCancel()
@@ -428,77 +900,190 @@ public class Peer {
 	
 	private void sendMessages() throws IOException 
 	{	
-		channel.write(sendBuffer);
-		if(sendBuffer.hasRemaining())
+		while(flushOutbound()) {
+			if(queueMessages())
+				continue;
+			
+			// if we wait for a buffer OP_WRITE is restored by bufferAvailable()
+			if(!waitingForBuffer)
+				removeInterest(SelectionKey.OP_WRITE);
 			return;
-		
-		if(!amInterested) {
-			if(!sendInterested())
-				return;
 		}
+	}
+	
+	// writes as much of the outbound queue as possible with one gathering write
+	// per run of buffers, returns true if the queue was emptied
+	private boolean flushOutbound() throws IOException
+	{
+		while(!outbound.isEmpty()) {
+			// control messages are charged to the shaper but never held back
+			long quota = uploadQuota();
+			Frame head = outbound.peek();
+			if((head.payload || head.upload != null) && quota <= 0) {
+				throttle(SelectionKey.OP_WRITE, BandwidthShaper.delay(tor.getUploadBucket(), shaper.getUploadBucket()));
+				return false;
+			}
 			
-		if(peerInterested && amChoking) {
-			if(!sendUnchoke())
-				return;
+			if(head.upload != null) {
+				int len = (int)Math.min(head.upload.length - head.uploadSent, quota);
+				long n = pieces.transferFrag(head.upload, head.uploadSent, len, channel);
+				tor.increaseSendStats(1, n);
+				tor.increaseUploadCount(n);
+				uploadRate.add(n);
+				uploaded(n);
+				head.uploadSent += n;
+				if(head.uploadSent < head.upload.length) {
+					if(n < len)
+						return false;
+					continue;
+				}
+				outbound.poll();
+				continue;
+			}
+			
+			int count = 0;
+			ByteBuffer truncated = null;
+			int truncatedLimit = 0;
+			for(Frame f : outbound) {
+				if(f.upload != null || count == MAX_GATHER)
+					break;
+				if(f.payload) {
+					if(quota <= 0)
+						break;
+					if(f.buffer.remaining() > quota) {
+						truncated = f.buffer;
+						truncatedLimit = f.buffer.limit();
+						f.buffer.limit(f.buffer.position() + (int)quota);
+					}
+					quota -= f.buffer.remaining();
+				}
+				gatherBuffers[count] = f.buffer;
+				gatherRemaining[count] = f.buffer.remaining();
+				++count;
+				if(truncated != null)
+					break;
+			}
+			
+			long n = channel.write(gatherBuffers, 0, count);
+			tor.increaseSendStats(1, n);
+			uploaded(n);
+			
+			boolean full = false;
+			for(int i = 0; i < count; ++i) {
+				gatherBuffers[i] = null;
+				if(full)
+					continue;
+				
+				Frame f = outbound.peek();
+				if(f.payload) {
+					tor.increaseUploadCount(gatherRemaining[i] - f.buffer.remaining());
+					uploadRate.add(gatherRemaining[i] - f.buffer.remaining());
+				}
+				if(f.buffer.hasRemaining()) {
+					full = true;
+					continue;
+				}
+				if(f.buffer == truncated)
+					break;
+				
+				outbound.poll();
+				releaseBuffer(f.buffer);
+			}
+			
+			// the rest of a truncated frame waits for tokens
+			if(truncated != null)
+				truncated.limit(truncatedLimit);
+			if(full)
+				return false;
 		}
 		
-		if(!peerChoking && requestedFrags.size() < MAX_REQUESTED_FRAGS && !sendRequests())
-			return;
+		return true;
+	}
+	
+	// puts new messages to the outbound queue, returns false if nothing was queued
+	private boolean queueMessages() throws IOException
+	{
+		waitingForBuffer = false;
+		
+		if(!amInterested)
+			queueInterested();
 			
-		if(pieces.isEndGameOn() && !sendCancels())
-			return;
+		if(choked != amChoking) {
+			if(choked)
+				queueChoke();
+			else
+				queueUnchoke();
+		}
 		
+		if(!peerChoking && requestedFrags.size() < maxRequests)
+			queueRequests();
+			
+		if(pieces.isEndGameOn())
+			queueCancels();
 		
-		if(!sendHaveMessages())
-			return;
+		queueHaveMessages();
 		
-		while(true) {
-			Pieces.PeerFrag f = null;
-			try {
-				f = peerRequestedFrags.remove(0);
-			} catch(IndexOutOfBoundsException e) {
-			}
-			if(f == null)
-				break;
+		queueFragments();
 		
-			if(!sendFragment(f))
-				return;
-		}
+		closeControlBuffer();
+		return !outbound.isEmpty();
+	}
+	
+	// returns the buffer small messages are appended to, or null if the pool 
+	// is exhausted
+	private ByteBuffer controlBuffer(int size)
+	{
+		if(waitingForBuffer)
+			return null;
+		if(sendBuffer != null && sendBuffer.remaining() >= size)
+			return sendBuffer;
 		
-		key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		closeControlBuffer();
+		sendBuffer = acquireBuffer(SelectionKey.OP_WRITE, bufferPool.getBufferSize());
+		if(sendBuffer == null)
+			waitingForBuffer = true;
+		return sendBuffer;
 	}
 	
+	private void closeControlBuffer()
+	{
+		if(sendBuffer == null)
+			return;
+		
+		sendBuffer.flip();
+		if(sendBuffer.hasRemaining())
+			outbound.add(new Frame(sendBuffer, false));
+		else
+			releaseBuffer(sendBuffer);
+		sendBuffer = null;
+	}
 	
-	private boolean sendInterested() throws IOException
+	private void queueInterested()
 	{
-		if(amInterested)
-			return true;
+		ByteBuffer b = controlBuffer(5);
+		if(b == null)
+			return;
 		amInterested = true;
 		
-		sendBuffer.clear();
-		sendBuffer.putInt(1);
-		sendBuffer.put((byte)messageInterested);
-		sendBuffer.flip();
-		channel.write(sendBuffer);
+		b.putInt(1);
+		b.put((byte)messageInterested);
 		//System.err.println(this + "sent interested");
-		return !sendBuffer.hasRemaining();
 	}
 
-	private boolean sendHaveMessages() throws IOException
+	private void queueHaveMessages()
 	{
-		sendBuffer.clear();
-		while(!verifiedPieces.isEmpty() && sendBuffer.remaining() >= 9) {
+		while(!verifiedPieces.isEmpty()) {
+			ByteBuffer b = controlBuffer(9);
+			if(b == null)
+				return;
+			
 			int index = verifiedPieces.poll();
-			sendBuffer.putInt(5);
-			sendBuffer.put((byte)messageHave);
-			sendBuffer.putInt(index);
+			b.putInt(5);
+			b.put((byte)messageHave);
+			b.putInt(index);
 			
 			//System.err.println(this + "sent have " + index);
 		}
-		
-		sendBuffer.flip();
-		channel.write(sendBuffer);
-		return !sendBuffer.hasRemaining();
 	}
 
 	private void sendBitfield()
@@ -510,103 +1095,145 @@ public class Peer {
 				bitfield[i/8] |= (1 << (7-(i&7)));
 		}
 		
-		sendBuffer.clear();
-		sendBuffer.putInt(1 + bitfield.length);
-		sendBuffer.put((byte)messageBitfield);
-		sendBuffer.put(bitfield);
-		sendBuffer.flip();
+		int size = 5 + bitfield.length;
+		ByteBuffer b = (size <= bufferPool.getBufferSize() ? bufferPool.acquire() : null);
+		if(b == null)
+			b = ByteBuffer.allocate(size);
+		b.putInt(1 + bitfield.length);
+		b.put((byte)messageBitfield);
+		b.put(bitfield);
+		b.flip();
+		outbound.add(new Frame(b, false));
 		
 		//System.err.println(this + "sent bitfield");
 	}
 	
-	private boolean sendFragment(PeerFrag f) throws IOException
+	private void queueFragments() throws IOException
 	{
-		byte[] b = pieces.getFrag(f);	
-		sendBuffer.clear();
-		sendBuffer.putInt(9 + b.length);
-		sendBuffer.put((byte)messagePiece);
-		sendBuffer.putInt(f.index);
-		sendBuffer.putInt(f.begin);
-		sendBuffer.put(b);
-		sendBuffer.flip();
-		channel.write(sendBuffer);
-		tor.increaseUploadCount(b.length);
-		//System.err.println(this + "sent fragment " + f.index + "," + f.begin/Pieces.FRAG_LENGTH);
-		return !sendBuffer.hasRemaining();
+		// while throttled the payload would only block the control messages,
+		// the write is rearmed once the buckets are refilled
+		if(uploadQuota() <= 0) {
+			if(!peerRequestedFrags.isEmpty())
+				throttle(SelectionKey.OP_WRITE, BandwidthShaper.delay(tor.getUploadBucket(), shaper.getUploadBucket()));
+			return;
+		}
+		
+		for(int i = 0; i < MAX_QUEUED_FRAGMENTS && !peerRequestedFrags.isEmpty(); ++i) {
+			Pieces.PeerFrag f = peerRequestedFrags.get(0);
+			
+			ByteBuffer header = controlBuffer(13);
+			if(header == null)
+				return;
+			
+			ByteBuffer payload = null;
+			if(!tor.isZeroCopyUpload()) {
+				payload = acquireBuffer(SelectionKey.OP_WRITE, f.length);
+				if(payload == null) {
+					waitingForBuffer = true;
+					return;
+				}
+				payload.limit(f.length);
+				pieces.readFrag(f, payload);
+				payload.flip();
+			}
+			
+			peerRequestedFrags.remove(0);
+			header.putInt(9 + f.length);
+			header.put((byte)messagePiece);
+			header.putInt(f.index);
+			header.putInt(f.begin);
+			closeControlBuffer();
+			
+			if(payload != null) {
+				outbound.add(new Frame(payload, true));
+			} else {
+				// the payload goes directly from the file to the socket
+				outbound.add(new Frame(f));
+			}
+			//System.err.println(this + "sent fragment " + f.index + "," + f.begin/Pieces.FRAG_LENGTH);
+		}
 	}
-
 	
-	private boolean sendKeepAlive() throws IOException
+	private void queueKeepAlive()
 	{
-		sendBuffer.clear();
-		sendBuffer.putInt(0);
-		sendBuffer.flip();
-		channel.write(sendBuffer);
-		return !sendBuffer.hasRemaining();
+		ByteBuffer b = controlBuffer(4);
+		if(b == null)
+			return;
+		b.putInt(0);
 	}
 	
-	private boolean sendUnchoke() throws IOException
+	private void queueChoke()
 	{
-		if(!amChoking)
-			return true;
-		amChoking = false;
+		ByteBuffer b = controlBuffer(5);
+		if(b == null)
+			return;
+		amChoking = true;
+		// requests of a choked peer are discarded
+		peerRequestedFrags.clear();
 		
+		b.putInt(1);
+		b.put((byte)messageChoke);
+		//System.err.println(this + "sent choke");
+	}
+	
+	private void queueUnchoke()
+	{
+		ByteBuffer b = controlBuffer(5);
+		if(b == null)
+			return;
+		amChoking = false;
 		
-		sendBuffer.clear();
-		sendBuffer.putInt(1);
-		sendBuffer.put((byte)messageUnchoke);
-		sendBuffer.flip();
-		channel.write(sendBuffer);
+		b.putInt(1);
+		b.put((byte)messageUnchoke);
 		//System.err.println(this + "sent unchoke");
-		return !sendBuffer.hasRemaining();		
 	}
 	
-	private boolean sendRequests() throws IOException
+	private void queueRequests()
 	{
-		sendBuffer.clear();
+		if(waitingForDisk.get())
+			return;
 		
-		while(requestedFrags.size() < MAX_REQUESTED_FRAGS) {
+		while(requestedFrags.size() < maxRequests) {
+			ByteBuffer b = controlBuffer(17);
+			if(b == null)
+				return;
+			
 			Pieces.PieceFrag f = pieceSelector.selectPiece(this);
 			if(f == null)
 				break;
 			
-			sendBuffer.putInt(13);  					
-			sendBuffer.put((byte)messageRequest);	   
-			sendBuffer.putInt(f.index);
-			sendBuffer.putInt(f.frag * Pieces.FRAG_LENGTH);
-			sendBuffer.putInt(pieces.getFragLength(f));
+			b.putInt(13);  					
+			b.put((byte)messageRequest);	   
+			b.putInt(f.index);
+			b.putInt(f.frag * Pieces.FRAG_LENGTH);
+			b.putInt(pieces.getFragLength(f));
 			
+			f.requestTime = System.nanoTime();
 			requestedFrags.add(f);
 			//System.err.println(this + "sent request " + f.index + "," + f.frag);
 		}
-				
-		sendBuffer.flip();
-		channel.write(sendBuffer);
-		return !sendBuffer.hasRemaining();
 	}
 	
-	private boolean sendCancels() throws IOException
+	private void queueCancels()
 	{
-		sendBuffer.clear();
-		
 		Iterator<Pieces.PieceFrag> it = requestedFrags.iterator();
 		while(it.hasNext()) {
 			Pieces.PieceFrag f = it.next();
 			if(pieces.haveFrag(f)) {
+				ByteBuffer b = controlBuffer(17);
+				if(b == null)
+					return;
+				
 				it.remove();
 				canceledRequests.add(f);
-				sendBuffer.putInt(13);
-				sendBuffer.put((byte)8);
-				sendBuffer.putInt(f.index);
-				sendBuffer.putInt(f.frag*Pieces.FRAG_LENGTH);
-				sendBuffer.putInt(pieces.getFragLength(f));
+				b.putInt(13);
+				b.put((byte)messageCancel);
+				b.putInt(f.index);
+				b.putInt(f.frag*Pieces.FRAG_LENGTH);
+				b.putInt(pieces.getFragLength(f));
 				//System.err.println(this + "sent cancel " + f.index + "," + f.frag);
 			}
 		}
-		
-		sendBuffer.flip();
-		channel.write(sendBuffer);
-		return !sendBuffer.hasRemaining();
 	}
 	
 	public InetSocketAddress getAddress()
@@ -615,27 +1242,10 @@ public class Peer {
 	}
 
 
-	public void addPiece(int index) 
-	{
-		if(bs.get(index))
-			pieceSelector.addPiece(index);
-	}
-	
-	private PieceSelector getRandomSelector() 
+	private PieceSelector getRarestFirstSelector() 
 	{
 		return new PieceSelector() {
-			ArrayList<Integer> l = new ArrayList<>();
 			int currentIndex = -1;
-			Random gen = new Random();
-			
-			@Override
-			public synchronized void addPiece(int index) 
-			{
-				l.add(index);
-				int i = gen.nextInt(l.size());
-				index = l.set(i, index);
-				l.set(l.size()-1, index);
-			}
 
 			@Override
 			public synchronized PieceFrag selectPiece(Peer peer) 
@@ -646,87 +1256,48 @@ public class Peer {
 						return f;
 				}
 				
-				while(!l.isEmpty()) {
-					int index = l.get(l.size()-1);
-					l.remove(l.size()-1);
-					if(pieces.requestPiece(index, peer)) {
-						currentIndex = index;
-						PieceFrag f = pieces.requestPieceFrag(currentIndex);
-						if(f != null)
-							return f;
-					}
-				}
-				
-				return null;
-			}
-
-			@Override
-			public synchronized void movePiecesTo(PieceSelector ps) 
-			{
-				for(int index : l)
-					ps.addPiece(index);
+				PieceFrag f = pieces.getPicker().pick(peer, bs);
+				if(f != null)
+					currentIndex = f.index;
+				return f;
 			}
-			
 		};
 	}
 	
 	private PieceSelector getStreamingSelector()
 	{
 		return new PieceSelector() {
-			private TreeSet<Integer> set = new TreeSet<>();
-			int currentIndex = -1;
-			
-			@Override
-			public synchronized void addPiece(int index) 
-			{
-				set.add(index);
-			}
+			PieceSelector rarestFirst = getRarestFirstSelector();
 
 			@Override
-			public synchronized PieceFrag selectPiece(Peer peer) 
+			public PieceFrag selectPiece(Peer peer) 
 			{
-				if(currentIndex != -1) {
-					PieceFrag f = pieces.requestPieceFrag(currentIndex);
-					if(f != null)
-						return f;
-				}
-				
-				while(!set.isEmpty()) {
-					int index;
-					if(oneDownloaded) {
-						index = set.pollFirst();
-					} else {
-						index = set.pollLast();
-						if(index < 0.9*piecesCount) {
-							set.add(index);
-							return null;
-						}
-					}
-					if(pieces.requestPiece(index, peer)) {
-						currentIndex = index;
-						PieceFrag f = pieces.requestPieceFrag(currentIndex);
-						if(f != null)
-							return f;
-					}
-				}
-				
-				return null;
-			}
-			
-			@Override
-			public synchronized void movePiecesTo(PieceSelector ps) 
-			{
-				for(int index : set)
-					ps.addPiece(index);
+				// pieces close to the playback position come first
+				PieceFrag f = pieces.getPicker().pickWindow(peer, bs);
+				if(f != null)
+					return f;
+				return rarestFirst.selectPiece(peer);
 			}
 		};
 	}
 	
+	// true if the block is already requested from this peer
+	boolean isRequested(PieceFrag f)
+	{
+		return requestedFrags.contains(f);
+	}
+	
 	public boolean isTrusted()
 	{
 		return trusted;
 	}
 	
+	// the connection was made by the peer
+	public boolean isInbound()
+	{
+		return inbound;
+	}
+	
 	public void setTrusted()
 	{
 		trusted = true;
@@ -738,10 +1309,7 @@ public class Peer {
 			return;
 		streaming = true;
 		
-		Pieces.PieceSelector newPieceSelector = getStreamingSelector();
-		pieceSelector.movePiecesTo(newPieceSelector);
-		pieceSelector = newPieceSelector;
-		oneDownloaded = false;
+		pieceSelector = getStreamingSelector();
 	}
 	
 	public void disableStreaming() 
@@ -750,9 +1318,7 @@ public class Peer {
 			return;
 		streaming = false;
 		
-		Pieces.PieceSelector newPieceSelector = getRandomSelector();
-		pieceSelector.movePiecesTo(newPieceSelector);
-		pieceSelector = newPieceSelector;
+		pieceSelector = getRarestFirstSelector();
 	}
 	
 	private Queue<Integer> verifiedPieces = new ConcurrentLinkedQueue<>();
@@ -779,7 +1345,20 @@ public class Peer {
 		return addr.getAddress();
 	}
 
-	public void endConnection()
+	// ends the connection from another thread, it is done on the event loop
+	// of the peer which may be processing it right now
+	public void disconnect()
+	{
+		tor.getReactor().execute(key, new Runnable() {
+			@Override
+			public void run()
+			{
+				endConnection();
+			}
+		});
+	}
+	
+	public synchronized void endConnection()
 	{
 		if(!connected)
 			return;
@@ -793,10 +1372,76 @@ public class Peer {
 			channel.close();
 		} catch (IOException e) {
 		}
+		
+		releaseRecvBuffer();
+		releaseBuffer(sendBuffer);
+		sendBuffer = null;
+		for(Frame f : outbound)
+			releaseBuffer(f.buffer);
+		outbound.clear();
+		
+		if(blockTarget != null) {
+			pieces.receiveBlockFailed(blockTargetFrag);
+			requestedFrags.add(blockTargetFrag);
+			blockTarget = null;
+		}
+		reclaimRequests();
+		pieces.getPicker().removePeer(bs);
 	}
 	
 	public boolean isConnected() 
 	{
 		return connected;
 	}
+	
+	public Torrent getTorrent()
+	{
+		return tor;
+	}
+	
+	public boolean isPeerChoking()
+	{
+		return peerChoking;
+	}
+	
+	public boolean isPeerInterested()
+	{
+		return peerInterested;
+	}
+	
+	public boolean isChoked()
+	{
+		return choked;
+	}
+	
+	// the choke or unchoke message is sent from the peer's own event loop
+	public void setChoked(boolean choked)
+	{
+		if(this.choked == choked || !connected)
+			return;
+		this.choked = choked;
+		addInterest(SelectionKey.OP_WRITE);
+		key.selector().wakeup();
+	}
+	
+	public double getUploadRate()
+	{
+		return uploadRate.get();
+	}
+	
+	public int getRequestQueueDepth()
+	{
+		return maxRequests;
+	}
+	
+	public double getDownloadRate()
+	{
+		return downloadRate.get();
+	}
+	
+	// smoothed time in milliseconds between sending a request and getting the block
+	public long getLatency()
+	{
+		return latency / 1000000;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,197 @@
+package btclient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// session-wide listen socket, incoming peers are routed to their torrent by 
+// the info hash in the handshake
+public class PeerListener implements PeerReactor.Handler {
+	// a connection is closed if its handshake does not arrive in time
+	private static final long HANDSHAKE_TIMEOUT = 15000000000l;
+	private static final int MAX_PENDING_HANDSHAKES = 64;
+	
+	private static PeerListener instance;
+	
+	private ServerSocketChannel serverChannel;
+	private int port;
+	private volatile int listenPort;
+	private AtomicInteger pendingCount = new AtomicInteger();
+	
+	public PeerListener(int port)
+	{
+		this.port = port;
+	}
+	
+	public static synchronized PeerListener getInstance()
+	{
+		if(instance == null)
+			instance = new PeerListener(0);
+		return instance;
+	}
+	
+	public synchronized boolean open()
+	{
+		if(serverChannel != null && serverChannel.isOpen())
+			return true;
+		
+		try {
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.configureBlocking(false);
+			serverChannel.bind(new InetSocketAddress(port));
+			listenPort = ((InetSocketAddress)serverChannel.getLocalAddress()).getPort();
+			PeerReactor.getInstance().register(serverChannel, SelectionKey.OP_ACCEPT, this);
+			return true;
+		} catch(IOException e) {
+			e.printStackTrace();
+			close();
+			return false;
+		}
+	}
+	
+	public synchronized void close()
+	{
+		if(serverChannel == null)
+			return;
+		
+		try {
+			serverChannel.close();
+		} catch(IOException e) {
+		}
+		serverChannel = null;
+	}
+	
+	public int getPort()
+	{
+		return listenPort;
+	}
+	
+	// takes effect on the next open()
+	public synchronized void setPort(int port)
+	{
+		this.port = port;
+	}
+
+	@Override
+	public void process(SelectionKey key) 
+	{
+		ServerSocketChannel server = (ServerSocketChannel)key.channel();
+		while(true) {
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch(IOException e) {
+				System.err.println("PeerListener: accept() failed: " + e.getMessage());
+				return;
+			}
+			if(channel == null)
+				return;
+			
+			// connections that never send a handshake must not pile up
+			if(pendingCount.incrementAndGet() > MAX_PENDING_HANDSHAKES) {
+				pendingCount.decrementAndGet();
+				close(channel);
+				continue;
+			}
+			
+			Handshake handshake = new Handshake(channel);
+			try {
+				channel.configureBlocking(false);
+				PeerReactor reactor = PeerReactor.getInstance();
+				reactor.register(channel, SelectionKey.OP_READ, handshake);
+				reactor.schedule(key, HANDSHAKE_TIMEOUT, new Runnable() {
+					@Override
+					public void run()
+					{
+						if(handshake.finish())
+							close(channel);
+					}
+				});
+			} catch(IOException e) {
+				if(handshake.finish())
+					close(channel);
+			}
+		}
+	}
+	
+	@Override
+	public void fail(SelectionKey key, RuntimeException e)
+	{
+		// the listen channel stays open, the next accept() may work
+	}
+	
+	public int getPendingHandshakesCount()
+	{
+		return pendingCount.get();
+	}
+	
+	private static void close(SocketChannel channel)
+	{
+		try {
+			channel.close();
+		} catch(IOException e) {
+		}
+	}
+	
+	private class Handshake implements PeerReactor.Handler {
+		private SocketChannel channel;
+		private ByteBuffer buffer = ByteBuffer.allocate(Peer.HANDSHAKE_LEN);
+		// the timeout and the handshake race to finish the connection
+		private AtomicBoolean finished = new AtomicBoolean();
+		
+		Handshake(SocketChannel channel)
+		{
+			this.channel = channel;
+		}
+		
+		// returns false if it was already finished
+		boolean finish()
+		{
+			if(!finished.compareAndSet(false, true))
+				return false;
+			pendingCount.decrementAndGet();
+			return true;
+		}
+		
+		@Override
+		public void process(SelectionKey key) 
+		{
+			try {
+				if(channel.read(buffer) == -1)
+					throw new IOException("peer ended connection");
+				if(buffer.hasRemaining())
+					return;
+				
+				byte[] handshake = buffer.array();
+				if(handshake[0] != 19 || !Arrays.equals(Arrays.copyOfRange(handshake, 1, 20), Peer.PROTOCOL.getBytes()))
+					throw new IOException("invalid handshake");
+				
+				// too late, the timeout has closed the channel
+				if(!finish())
+					return;
+				
+				Torrent tor = PeerReactor.getInstance().findTorrent(Arrays.copyOfRange(handshake, 28, 48));
+				if(tor == null || !tor.acceptPeer(key, handshake)) {
+					key.cancel();
+					close(channel);
+				}
+			} catch(IOException e) {
+				fail(key, null);
+			}
+		}
+		
+		@Override
+		public void fail(SelectionKey key, RuntimeException e)
+		{
+			key.cancel();
+			finish();
+			close(channel);
+		}
+	}
+}
@@ -0,0 +1,360 @@
+package btclient;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// session-wide pool of selector threads, channels of all running torrents
+// are spread round-robin across the event loops
+public class PeerReactor implements TorrentWorker {
+	interface Handler {
+		public void process(SelectionKey key);
+		// the handler threw, the connection must be ended by its owner
+		public void fail(SelectionKey key, RuntimeException e);
+	}
+
+	private static final int TICK_INTERVAL = 1000;
+
+	private static PeerReactor instance;
+
+	private final int loopsCount;
+	private EventLoop[] loops;
+	private AtomicInteger nextLoop;
+
+	private List<Torrent> torrents;
+
+	private volatile boolean running;
+	
+	// when set it replaces the chokers of the torrents
+	private volatile Choker sessionChoker;
+
+	public PeerReactor(int loopsCount)
+	{
+		this.loopsCount = Math.max(1, loopsCount);
+		nextLoop = new AtomicInteger();
+		torrents = new CopyOnWriteArrayList<>();
+		running = false;
+	}
+
+	public static synchronized PeerReactor getInstance()
+	{
+		if(instance == null)
+			instance = new PeerReactor(Runtime.getRuntime().availableProcessors());
+		return instance;
+	}
+
+	@Override
+	public synchronized void start()
+	{
+		if(running)
+			return;
+
+		loops = new EventLoop[loopsCount];
+		for(int i = 0; i < loopsCount; ++i) {
+			try {
+				loops[i] = new EventLoop(i);
+			} catch(IOException e) {
+				System.err.println("PeerReactor: Selector.open() failed: " + e.getMessage());
+				for(int j = 0; j < i; ++j)
+					loops[j].close();
+				return;
+			}
+		}
+
+		running = true;
+		for(EventLoop loop : loops)
+			loop.start();
+	}
+
+	@Override
+	public synchronized void stop()
+	{
+		if(!running)
+			return;
+		running = false;
+
+		for(EventLoop loop : loops)
+			loop.interrupt();
+		for(EventLoop loop : loops)
+			loop.join();
+	}
+
+	public boolean addTorrent(Torrent tor)
+	{
+		start();
+		if(!running)
+			return false;
+
+		if(!torrents.contains(tor))
+			torrents.add(tor);
+		return true;
+	}
+
+	public void removeTorrent(Torrent tor)
+	{
+		torrents.remove(tor);
+	}
+
+	public Torrent findTorrent(byte[] infoHash)
+	{
+		for(Torrent tor : torrents) {
+			if(Arrays.equals(tor.getInfoHash(), infoHash))
+				return tor;
+		}
+		return null;
+	}
+
+	public void register(SelectableChannel channel, int ops, Handler handler) throws IOException
+	{
+		if(!running)
+			throw new ClosedChannelException();
+
+		EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loopsCount)];
+		loop.submit(new Runnable() {
+			@Override
+			public void run()
+			{
+				try {
+					channel.register(loop.selector, ops, handler);
+				} catch(IOException e) {
+					try {
+						channel.close();
+					} catch(IOException ee) {
+					}
+				}
+			}
+		});
+	}
+
+	// runs the task on the loop owning the key after the delay
+	public void schedule(SelectionKey key, long delayNanos, Runnable task)
+	{
+		EventLoop loop = findLoop(key);
+		if(loop != null)
+			loop.schedule(delayNanos, task);
+	}
+
+	// runs the task on the loop owning the key, so it does not race with the
+	// handler of the key. it is run right away if no loop owns the key
+	public void execute(SelectionKey key, Runnable task)
+	{
+		EventLoop loop = findLoop(key);
+		if(loop == null || !running || Thread.currentThread() == loop.thread)
+			task.run();
+		else
+			loop.submit(task);
+	}
+
+	private EventLoop findLoop(SelectionKey key)
+	{
+		EventLoop[] l = loops;
+		if(l == null)
+			return null;
+		for(EventLoop loop : l) {
+			if(loop.selector == key.selector())
+				return loop;
+		}
+		return null;
+	}
+
+	public Choker getSessionChoker()
+	{
+		return sessionChoker;
+	}
+
+	public void setSessionChoker(Choker choker)
+	{
+		sessionChoker = choker;
+	}
+
+	public int getLoopsCount()
+	{
+		return loopsCount;
+	}
+
+	private static class Timer {
+		long deadline;
+		Runnable task;
+
+		Timer(long deadline, Runnable task)
+		{
+			this.deadline = deadline;
+			this.task = task;
+		}
+	}
+
+	private class EventLoop {
+		private final int id;
+		private final Selector selector;
+		private final Queue<Runnable> tasks;
+		private final PriorityQueue<Timer> timers;
+		private Thread thread;
+		private long lastTick;
+
+		EventLoop(int id) throws IOException
+		{
+			this.id = id;
+			selector = Selector.open();
+			tasks = new ConcurrentLinkedQueue<>();
+			timers = new PriorityQueue<>(new Comparator<Timer>() {
+				@Override
+				public int compare(Timer a, Timer b)
+				{
+					return Long.compare(a.deadline, b.deadline);
+				}
+			});
+		}
+
+		void start()
+		{
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{
+					loop();
+				}
+			}, "peer reactor " + id);
+
+			thread.start();
+		}
+
+		void submit(Runnable task)
+		{
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		void schedule(long delayNanos, Runnable task)
+		{
+			Timer timer = new Timer(System.nanoTime() + delayNanos, task);
+			if(Thread.currentThread() == thread) {
+				timers.add(timer);
+				return;
+			}
+			
+			submit(new Runnable() {
+				@Override
+				public void run()
+				{
+					timers.add(timer);
+				}
+			});
+		}
+
+		void interrupt()
+		{
+			thread.interrupt();
+		}
+
+		void join()
+		{
+			try {
+				thread.join();
+			} catch(InterruptedException e) {
+
+			}
+		}
+
+		void close()
+		{
+			for(SelectionKey key : selector.keys()) {
+				try {
+					key.channel().close();
+				} catch(IOException e) {
+				}
+			}
+
+			try {
+				selector.close();
+			} catch(IOException e) {
+			}
+		}
+
+		private void loop()
+		{
+			lastTick = System.currentTimeMillis();
+
+			while(!Thread.currentThread().isInterrupted()) {
+				try {
+					long timeout = Math.max(1, TICK_INTERVAL - (System.currentTimeMillis() - lastTick));
+					Timer next = timers.peek();
+					if(next != null)
+						timeout = Math.min(timeout, (next.deadline - System.nanoTime() + 999999) / 1000000);
+					
+					if(timeout > 0)
+						selector.select(timeout);
+					else
+						selector.selectNow();
+				} catch(IOException e) {
+					System.err.println(thread.getName() + ": select() failed: " + e.getMessage());
+					break;
+				}
+
+				if(Thread.currentThread().isInterrupted())
+					break;
+
+				Runnable task;
+				while((task = tasks.poll()) != null)
+					task.run();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if(!key.isValid())
+						continue;
+
+					try {
+						((Handler)key.attachment()).process(key);
+					} catch(RuntimeException e) {
+						// a broken connection must not take down the whole loop
+						e.printStackTrace();
+						((Handler)key.attachment()).fail(key, e);
+					}
+				}
+
+				long nanoNow = System.nanoTime();
+				while(!timers.isEmpty() && timers.peek().deadline <= nanoNow)
+					timers.poll().task.run();
+
+				long now = System.currentTimeMillis();
+				if(now - lastTick >= TICK_INTERVAL) {
+					lastTick = now;
+					tick();
+				}
+			}
+
+			close();
+		}
+
+		private void tick()
+		{
+			// every loop does the housekeeping of its share of the torrents
+			int i = 0;
+			for(Torrent tor : torrents) {
+				if(i++ % loopsCount == id)
+					tor.managePeers();
+			}
+
+			Choker choker = sessionChoker;
+			if(id == 0 && choker != null) {
+				List<Peer> peers = new ArrayList<>();
+				for(Torrent tor : torrents)
+					peers.addAll(tor.getPeers());
+				choker.tick(peers);
+			}
+		}
+	}
+}
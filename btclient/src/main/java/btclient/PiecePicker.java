@@ -0,0 +1,323 @@
+package btclient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+// torrent-wide rarest-first picker, free pieces are kept in one intrusive 
+// list per priority and availability count so the rarest of the most 
+// important ones are always found first
+public class PiecePicker {
+	private static final int NONE = -1;
+	private static final int MAX_PRIORITY = FragmentSaver.FileEntry.PRIORITY_HIGH;
+	
+	// pieces due within this time go only to fast peers
+	private static final long URGENT_TIME = 4000000000l;
+	// pieces due within this time are requested from several peers at once
+	private static final long DUPLICATE_TIME = 1500000000l;
+	
+	private final Pieces pieces;
+	private final int piecesCount;
+	
+	// how many connected peers have each piece
+	private int[] availability;
+	
+	// pieces of priority 0 are not downloaded
+	private byte[] priority;
+	
+	private int[] next;
+	private int[] prev;
+	private boolean[] listed;
+	private int[][] head;
+	private int[][] tail;
+	
+	private List<Integer> endGamePieces;
+	
+	// streaming window, pieces in it are due in the order of playback
+	private boolean streaming;
+	private long playbackOffset;
+	private long playbackTime;
+	private long playbackRate;
+	private int windowFirst;
+	private int windowLast;
+	// peers at least this fast get the urgent pieces
+	private double fastRate;
+	
+	private Random gen;
+	
+	public PiecePicker(Pieces pieces, int piecesCount)
+	{
+		this.pieces = pieces;
+		this.piecesCount = piecesCount;
+		availability = new int[piecesCount];
+		next = new int[piecesCount];
+		prev = new int[piecesCount];
+		listed = new boolean[piecesCount];
+		priority = new byte[piecesCount];
+		Arrays.fill(priority, (byte)FragmentSaver.FileEntry.PRIORITY_NORMAL);
+		head = new int[MAX_PRIORITY+1][16];
+		tail = new int[MAX_PRIORITY+1][16];
+		endGamePieces = new ArrayList<>();
+		streaming = false;
+		fastRate = 0;
+		gen = new Random();
+		reset();
+	}
+	
+	public synchronized void reset()
+	{
+		for(int i = 0; i < piecesCount; ++i) {
+			availability[i] = 0;
+			next[i] = prev[i] = NONE;
+			listed[i] = false;
+		}
+		for(int prio = 0; prio <= MAX_PRIORITY; ++prio) {
+			Arrays.fill(head[prio], NONE);
+			Arrays.fill(tail[prio], NONE);
+		}
+		endGamePieces.clear();
+	}
+	
+	// the piece can be picked
+	public synchronized void add(int index)
+	{
+		if(listed[index] || priority[index] == 0)
+			return;
+		link(index);
+	}
+	
+	public synchronized int getPriority(int index)
+	{
+		return priority[index];
+	}
+	
+	public synchronized void setPriority(int index, int prio)
+	{
+		if(priority[index] == prio)
+			return;
+		
+		boolean wasListed = listed[index];
+		if(wasListed)
+			unlink(index);
+		priority[index] = (byte)prio;
+		if(prio > 0 && (wasListed || pieces.isFree(index)))
+			link(index);
+	}
+	
+	public synchronized void remove(int index)
+	{
+		if(!listed[index])
+			return;
+		unlink(index);
+	}
+	
+	public synchronized void increment(int index)
+	{
+		if(listed[index]) {
+			unlink(index);
+			++availability[index];
+			link(index);
+		} else {
+			++availability[index];
+		}
+	}
+	
+	public synchronized void decrement(int index)
+	{
+		if(availability[index] == 0)
+			return;
+		if(listed[index]) {
+			unlink(index);
+			--availability[index];
+			link(index);
+		} else {
+			--availability[index];
+		}
+	}
+	
+	public synchronized void addPeer(BitSet bs)
+	{
+		for(int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i+1))
+			increment(i);
+	}
+	
+	public synchronized void removePeer(BitSet bs)
+	{
+		for(int i = bs.nextSetBit(0); i >= 0; i = bs.nextSetBit(i+1))
+			decrement(i);
+	}
+	
+	public synchronized int getAvailability(int index)
+	{
+		return availability[index];
+	}
+	
+	// pieces that are being downloaded when the end-game starts are open to 
+	// every peer
+	public synchronized void startEndGame(List<Integer> downloading)
+	{
+		endGamePieces.clear();
+		endGamePieces.addAll(downloading);
+	}
+	
+	// requests the rarest piece the peer has and returns its first block
+	public synchronized Pieces.PieceFrag pick(Peer peer, BitSet bs)
+	{
+		for(int prio = MAX_PRIORITY; prio > 0; --prio) {
+			for(int a = 1; a < head[prio].length; ++a) {
+				int i = head[prio][a];
+				while(i != NONE) {
+					int n = next[i];
+					if(bs.get(i)) {
+						Pieces.PieceFrag f = request(i, peer);
+						if(f != null)
+							return f;
+					}
+					i = n;
+				}
+			}
+		}
+		
+		if(!pieces.isEndGameOn())
+			return null;
+		
+		for(int k = 0; k < endGamePieces.size(); ++k) {
+			int i = endGamePieces.get(gen.nextInt(endGamePieces.size()));
+			if(!bs.get(i))
+				continue;
+			if(pieces.isVerified(i)) {
+				endGamePieces.remove((Integer)i);
+				continue;
+			}
+			Pieces.PieceFrag f = request(i, peer);
+			if(f != null)
+				return f;
+		}
+		return null;
+	}
+	
+	// playback is at the offset now and goes on at the rate, the pieces of 
+	// the next lookahead bytes are picked before any other
+	public synchronized void setPlayback(long offset, long lookahead, long rate)
+	{
+		long totalSize = (long)(piecesCount-1) * pieces.getPieceLength() + pieces.getPieceLength(piecesCount-1);
+		offset = Math.max(0, Math.min(offset, totalSize-1));
+		
+		streaming = true;
+		playbackOffset = offset;
+		playbackTime = System.nanoTime();
+		playbackRate = Math.max(1, rate);
+		windowFirst = (int)(offset / pieces.getPieceLength());
+		windowLast = (int)Math.min(piecesCount-1, (offset + Math.max(1, lookahead) - 1) / pieces.getPieceLength());
+	}
+	
+	public synchronized void clearPlayback()
+	{
+		streaming = false;
+	}
+	
+	public synchronized void setFastRate(double fastRate)
+	{
+		this.fastRate = fastRate;
+	}
+	
+	// when the piece is needed by the player
+	private long deadline(int index)
+	{
+		long start = Math.max(0, (long)index * pieces.getPieceLength() - playbackOffset);
+		return playbackTime + (long)(start * 1e9 / playbackRate);
+	}
+	
+	// requests a block of the most urgent piece in the streaming window, slow 
+	// peers are left out of the pieces that are due soon and the ones that
+	// are about to miss their deadline are requested from several fast peers
+	public synchronized Pieces.PieceFrag pickWindow(Peer peer, BitSet bs)
+	{
+		if(!streaming)
+			return null;
+		
+		long now = System.nanoTime();
+		boolean fast = peer.getDownloadRate() >= fastRate;
+		for(int i = windowFirst; i <= windowLast; ++i) {
+			if(!bs.get(i) || priority[i] == 0 || pieces.isVerified(i))
+				continue;
+			
+			long left = deadline(i) - now;
+			if(left < URGENT_TIME && !fast)
+				continue;
+			
+			Pieces.PieceFrag f = request(i, peer);
+			if(f == null)
+				f = pieces.requestPieceFrag(i);
+			if(f == null && left < DUPLICATE_TIME)
+				f = pieces.requestDuplicateFrag(i, peer);
+			if(f != null)
+				return f;
+		}
+		return null;
+	}
+	
+	private Pieces.PieceFrag request(int index, Peer peer)
+	{
+		if(!pieces.requestPiece(index, peer))
+			return null;
+		return pieces.requestPieceFrag(index);
+	}
+	
+	private void link(int index)
+	{
+		int a = availability[index];
+		int prio = priority[index];
+		if(a >= head[prio].length)
+			grow(prio, a+1);
+		int[] head = this.head[prio];
+		int[] tail = this.tail[prio];
+		
+		listed[index] = true;
+		if(head[a] == NONE) {
+			next[index] = prev[index] = NONE;
+			head[a] = tail[a] = index;
+		} else if(gen.nextBoolean()) {
+			// ties are broken at random
+			prev[index] = NONE;
+			next[index] = head[a];
+			prev[head[a]] = index;
+			head[a] = index;
+		} else {
+			next[index] = NONE;
+			prev[index] = tail[a];
+			next[tail[a]] = index;
+			tail[a] = index;
+		}
+	}
+	
+	private void unlink(int index)
+	{
+		int a = availability[index];
+		int[] head = this.head[priority[index]];
+		int[] tail = this.tail[priority[index]];
+		if(prev[index] != NONE)
+			next[prev[index]] = next[index];
+		else
+			head[a] = next[index];
+		if(next[index] != NONE)
+			prev[next[index]] = prev[index];
+		else
+			tail[a] = prev[index];
+		
+		next[index] = prev[index] = NONE;
+		listed[index] = false;
+	}
+	
+	private void grow(int prio, int size)
+	{
+		int old = head[prio].length;
+		int len = Math.max(size, 2*old);
+		head[prio] = Arrays.copyOf(head[prio], len);
+		tail[prio] = Arrays.copyOf(tail[prio], len);
+		for(int a = old; a < len; ++a)
+			head[prio][a] = tail[prio][a] = NONE;
+	}
+}
@@ -0,0 +1,94 @@
+package btclient;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// session-wide pool of threads hashing the downloaded pieces, so the disk
+// threads only read and write
+public class PieceVerifier {
+	// pieces waiting per thread, when it is full the disk thread hashes
+	// the piece itself instead of reading more
+	private static final int QUEUE_PER_THREAD = 4;
+
+	private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue()
+		{
+			return newSha1();
+		}
+	};
+
+	private static PieceVerifier instance;
+
+	private ThreadPoolExecutor executor;
+
+	public PieceVerifier(int threadsCount)
+	{
+		threadsCount = Math.max(1, threadsCount);
+		AtomicInteger nextId = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threadsCount, threadsCount, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(threadsCount * QUEUE_PER_THREAD),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r)
+					{
+						Thread t = new Thread(r, "piece verifier " + nextId.getAndIncrement());
+						t.setDaemon(true);
+						return t;
+					}
+				},
+				new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	public static synchronized PieceVerifier getInstance()
+	{
+		if(instance == null)
+			instance = new PieceVerifier(Runtime.getRuntime().availableProcessors());
+		return instance;
+	}
+
+	public static MessageDigest newSha1()
+	{
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// a SHA-1 digest of the calling thread, ready to use
+	public static MessageDigest sha1()
+	{
+		MessageDigest md = digests.get();
+		md.reset();
+		return md;
+	}
+
+	// the result is given to Pieces.readPieceCompleted() on a verifier thread
+	public void verify(Pieces pieces, int index, ByteBuffer data)
+	{
+		executor.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				pieces.readPieceCompleted(index, data);
+			}
+		});
+	}
+
+	public int getThreadsCount()
+	{
+		return executor.getMaximumPoolSize();
+	}
+
+	public int getQueuedCount()
+	{
+		return executor.getQueue().size();
+	}
+}
@@ -3,28 +3,30 @@ package btclient;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 
 public class Pieces {
-	private static class Piece {
-		PieceState state;
-		byte[] hash;
-		BitSet requested; // downloaded or scheduled for download
-		BitSet have;
-		int writeCount; // how many frags downloaded
-		Peer peer;
-	}
-	
 	enum PieceState {
 		FREE,
 		DOWNLOADING,
@@ -32,11 +34,25 @@ public class Pieces {
 		VERIFIED
 	}
 	
+	private static final PieceState[] STATES = PieceState.values();
+	
+	// a piece state word is the PieceState ordinal with the flags above it
+	private static final int STATE_MASK = 3;
+	private static final int BUFFERED = 4; // blocks are assembled in the piece buffer
+	private static final int ON_DISK = 8; // blocks went straight to the disk
+	
 	public static final int FRAG_LENGTH = 1<<14;
 	
+	// how long the senders of a failed piece are passed over when other
+	// peers have it too
+	private static final long REDOWNLOAD_TIME = 30000;
+	
+	private static final long DEFAULT_MAX_HASH_PENDING_MEMORY = 8l * 1024 * 1024;
+	
 	public static class PieceFrag {
 		int index;
 		int frag;
+		long requestTime; // when we requested it from a peer
 		
 		public PieceFrag(int index, int frag)
 		{
@@ -78,8 +94,12 @@ public class Pieces {
 	private int pieceLength;
 	private int piecesCount;
 	private int lastPieceLength;
-	private int piecesDownloadedCount;
-	private long verifiedDownloadCount;
+	private AtomicInteger piecesDownloadedCount;
+	private AtomicLong verifiedDownloadCount;
+	
+	// pieces of the selected files that are not verified yet
+	private AtomicInteger wantedLeftCount;
+	private AtomicLong wantedLeftBytes;
 	
 	private PieceFrag lastFrag;
 	private int lastFragLength;
@@ -88,72 +108,142 @@ public class Pieces {
 	private int fragsCount;
 	private AtomicInteger freePiecesCount;
 	
-	private Piece[] p;
+	// the piece table, peers of all event loops and the disk thread update
+	// it with compare-and-set instead of locking every piece
+	private AtomicIntegerArray states;
+	private AtomicIntegerArray haveCounts;
+	private AtomicIntegerArray writeCounts; // how many frags written to the disk
+	// block bitmaps, every piece owns wordsPerPiece words
+	private int wordsPerPiece;
+	private AtomicLongArray requested; // downloaded or scheduled for download
+	private AtomicLongArray have;
+	private AtomicLongArray receiving;
+	private byte[] hashes;
+	private AtomicReferenceArray<Peer> owners;
+	private AtomicReferenceArray<ByteBuffer> buffers; // blocks are received straight into them
+	private AtomicReferenceArray<InetAddress> blockSources; // who sent the block, per frag index
+	
+	private AtomicReferenceArray<PieceHasher> hashers;
+	// out of order blocks held by the hashers
+	private AtomicLong hashPendingMemory;
+	private volatile long maxHashPendingMemory;
+	private AtomicInteger hashedWithoutReadCount;
+	
+	// pieces that failed the hash check, until they pass it
+	private Map<Integer, FailedPiece> failedPieces;
+	
 	private FragmentSaver fragmentSaver;
+	private PiecePicker picker;
 	
-	private boolean endGame;
+	private volatile boolean endGame;
 	
-	private volatile BitSet have;
-	private BitSet verified;
+	// what is saved, frags written to the disk and verified pieces
+	private AtomicLongArray written;
+	private AtomicLongArray verified;
 	
 	private Random gen;
 	
+	private long maxBuffersMemory = 32l * 1024 * 1024;
+	private long buffersMemory;
+	private ArrayDeque<ByteBuffer> freeBuffers;
+	
+	// SHA-1 of a piece whose blocks go to the disk, it is fed as the blocks 
+	// arrive so the piece does not have to be read back
+	private static class PieceHasher {
+		MessageDigest md = PieceVerifier.newSha1();
+		int nextFrag;
+		Map<Integer, byte[]> pending = new HashMap<>();
+		boolean dropped;
+	}
+	
+	private static class FailedBlock {
+		int frag;
+		byte[] digest;
+		InetAddress source;
+	}
+	
+	private static class FailedPiece {
+		long failTime;
+		List<FailedBlock> blocks = new ArrayList<>();
+		Set<InetAddress> sources = new HashSet<>();
+	}
+	
 	public Pieces(Torrent tor, Map<String, BeObject> m, long totalSize) 
 	{
 		this.tor = tor;
 		pieceLength = (int)m.get("piece length").getLong();
-		byte[] b = m.get("pieces").getBytes();
-		piecesCount = b.length / 20;
+		hashes = m.get("pieces").getBytes();
+		piecesCount = hashes.length / 20;
 		lastPieceLength = (int)(totalSize % pieceLength);
 		if(lastPieceLength == 0)
 			lastPieceLength = pieceLength;
-		piecesDownloadedCount = 0;
+		piecesDownloadedCount = new AtomicInteger();
+		verifiedDownloadCount = new AtomicLong();
+		wantedLeftCount = new AtomicInteger();
+		wantedLeftBytes = new AtomicLong();
 		
 		lastFrag = new PieceFrag(piecesCount-1, (lastPieceLength+FRAG_LENGTH-1)/FRAG_LENGTH-1);
 		lastFragLength = lastPieceLength % FRAG_LENGTH;
+		if(lastFragLength == 0)
+			lastFragLength = FRAG_LENGTH;
 		pieceFragCount = pieceLength / FRAG_LENGTH;
 		lastPieceFragCount = lastFrag.frag+1;
 		fragsCount = (piecesCount-1) * pieceFragCount + lastPieceFragCount;
 		freePiecesCount = new AtomicInteger(piecesCount);
 		
-		p = new Piece[piecesCount];
-		for(int i = 0; i < piecesCount; ++i) {
-			p[i] = new Piece();
-			p[i].state = PieceState.FREE;
-			p[i].writeCount = 0;
-			p[i].hash = Arrays.copyOfRange(b, i*20, (i+1)*20);
-			p[i].requested = new BitSet(getPieceFragCount(i));
-			p[i].have = new BitSet(getPieceFragCount(i));
-		}			
+		states = new AtomicIntegerArray(piecesCount);
+		haveCounts = new AtomicIntegerArray(piecesCount);
+		writeCounts = new AtomicIntegerArray(piecesCount);
+		wordsPerPiece = (pieceFragCount+63) / 64;
+		requested = new AtomicLongArray(piecesCount * wordsPerPiece);
+		have = new AtomicLongArray(piecesCount * wordsPerPiece);
+		receiving = new AtomicLongArray(piecesCount * wordsPerPiece);
+		owners = new AtomicReferenceArray<>(piecesCount);
+		buffers = new AtomicReferenceArray<>(piecesCount);
+		blockSources = new AtomicReferenceArray<>(fragsCount);
+		failedPieces = new ConcurrentHashMap<>();
+		hashers = new AtomicReferenceArray<>(piecesCount);
+		hashPendingMemory = new AtomicLong();
+		maxHashPendingMemory = DEFAULT_MAX_HASH_PENDING_MEMORY;
+		hashedWithoutReadCount = new AtomicInteger();
 		
+		written = new AtomicLongArray((fragsCount+63) / 64);
+		verified = new AtomicLongArray((piecesCount+63) / 64);
 		
-		have = new BitSet(fragsCount);
-		verified = new BitSet(piecesCount);
+		picker = new PiecePicker(this, piecesCount);
+		updateWanted();
 		
 		gen = new Random();
+		
+		freeBuffers = new ArrayDeque<>();
+		buffersMemory = 0;
 	}
-
+	
 	public boolean init(ObjectInputStream in) 
 	{
 		try {
 			BitSet newHave = (BitSet)in.readObject();
 			if(newHave.size() < fragsCount)
 				throw new IOException();
-			have = newHave;
 			
 			BitSet newVerified = (BitSet)in.readObject();
 			if(newVerified.size() < piecesCount)
 				throw new IOException();
-			verified = newVerified;
 			
-			piecesDownloadedCount = 0;
-			verifiedDownloadCount = 0;
+			load(written, newHave);
+			load(verified, newVerified);
+			
+			int count = 0;
+			long bytes = 0;
 			for(int i = 0; i < piecesCount; ++i) {
-				if(verified.get(i)) {
-					++piecesDownloadedCount;
-					verifiedDownloadCount += getPieceLength(i);
+				if(isVerified(i)) {
+					++count;
+					bytes += getPieceLength(i);
 				}
 			}
+			piecesDownloadedCount.set(count);
+			verifiedDownloadCount.set(bytes);
+			updateWanted();
 			
 			return true;
 		} catch (ClassNotFoundException | ClassCastException | IOException e) {
@@ -165,36 +255,45 @@ public class Pieces {
 	public void init()
 	{
 		freePiecesCount.set(0);
+		picker.reset();
 		
 		for(int i = 0; i < piecesCount; ++i) {
-			if(verified.get(i)) {
-				p[i].state = PieceState.VERIFIED;
+			if(isVerified(i)) {
+				releaseBuffer(i);
+				states.set(i, PieceState.VERIFIED.ordinal());
 				continue;
 			}
 			
-			p[i].have.clear();
-			p[i].requested.clear();
+			clearBits(have, i);
+			clearBits(requested, i);
+			clearBits(receiving, i);
+			releaseBuffer(i);
+			dropHasher(i);
+			int card = 0;
 			for(int frag = 0; frag < getPieceFragCount(i); ++frag) {
-				if(have.get(toFragIndex(i, frag))) {
-					p[i].have.set(frag);
-					p[i].requested.set(frag);
+				if(getBit(written, toFragIndex(i, frag))) {
+					setBit(have, toBlockBit(i, frag));
+					setBit(requested, toBlockBit(i, frag));
+					++card;
 				}
 			}
 			
-			int card = p[i].have.cardinality();
-			p[i].writeCount = card;
+			haveCounts.set(i, card);
+			writeCounts.set(i, card);
 			if(card < getPieceFragCount(i)) {
-				p[i].state = PieceState.FREE;
-				freePiecesCount.incrementAndGet();
+				states.set(i, PieceState.FREE.ordinal() | (card > 0 ? ON_DISK : 0));
+				addFree(i);
+				picker.add(i);
 			} else {
-				p[i].state = PieceState.DOWNLOADED;
+				states.set(i, PieceState.DOWNLOADED.ordinal());
 				fragmentSaver.readPiece(i);
 			}
 		}
 		
 		endGame = false;
 	
-		if(piecesDownloadedCount == piecesCount)
+		updateWanted();
+		if(wantedLeftCount.get() == 0)
 			tor.setCompleted();
 	}
 	
@@ -202,7 +301,124 @@ public class Pieces {
 	{
 		return index*pieceFragCount + frag;
 	}
-
+	
+	private int toBlockBit(int index, int frag)
+	{
+		return index*wordsPerPiece*64 + frag;
+	}
+	
+	private static boolean getBit(AtomicLongArray a, int bit)
+	{
+		return (a.get(bit >>> 6) & (1l << bit)) != 0;
+	}
+	
+	// returns false if the bit was already set
+	private static boolean setBit(AtomicLongArray a, int bit)
+	{
+		int word = bit >>> 6;
+		long mask = 1l << bit;
+		while(true) {
+			long v = a.get(word);
+			if((v & mask) != 0)
+				return false;
+			if(a.compareAndSet(word, v, v | mask))
+				return true;
+		}
+	}
+	
+	// returns false if the bit was already clear
+	private static boolean clearBit(AtomicLongArray a, int bit)
+	{
+		int word = bit >>> 6;
+		long mask = 1l << bit;
+		while(true) {
+			long v = a.get(word);
+			if((v & mask) == 0)
+				return false;
+			if(a.compareAndSet(word, v, v & ~mask))
+				return true;
+		}
+	}
+	
+	private boolean hasBits(AtomicLongArray a, int index)
+	{
+		for(int w = index*wordsPerPiece; w < (index+1)*wordsPerPiece; ++w) {
+			if(a.get(w) != 0)
+				return true;
+		}
+		return false;
+	}
+	
+	private void clearBits(AtomicLongArray a, int index)
+	{
+		for(int w = index*wordsPerPiece; w < (index+1)*wordsPerPiece; ++w)
+			a.set(w, 0);
+	}
+	
+	// sets the first clear block bit of the piece, returns the frag or -1
+	private int claimFirstClear(AtomicLongArray a, int index)
+	{
+		int count = getPieceFragCount(index);
+		for(int w = 0; w < wordsPerPiece; ++w) {
+			int word = index*wordsPerPiece + w;
+			while(true) {
+				long v = a.get(word);
+				if(v == -1l)
+					break;
+				int bit = Long.numberOfTrailingZeros(~v);
+				if(w*64 + bit >= count)
+					return -1;
+				if(a.compareAndSet(word, v, v | (1l << bit)))
+					return w*64 + bit;
+			}
+		}
+		return -1;
+	}
+	
+	private static void load(AtomicLongArray a, BitSet b)
+	{
+		long[] words = b.toLongArray();
+		for(int i = 0; i < a.length(); ++i)
+			a.set(i, i < words.length ? words[i] : 0);
+	}
+	
+	private static BitSet toBitSet(AtomicLongArray a)
+	{
+		long[] words = new long[a.length()];
+		for(int i = 0; i < words.length; ++i)
+			words[i] = a.get(i);
+		// valueOf() drops the trailing empty words, init() checks the size
+		BitSet b = new BitSet(words.length * 64);
+		b.or(BitSet.valueOf(words));
+		return b;
+	}
+	
+	private PieceState getState(int index)
+	{
+		return STATES[states.get(index) & STATE_MASK];
+	}
+	
+	// keeps the flags, returns the previous state
+	private PieceState setState(int index, PieceState state)
+	{
+		while(true) {
+			int s = states.get(index);
+			if(states.compareAndSet(index, s, (s & ~STATE_MASK) | state.ordinal()))
+				return STATES[s & STATE_MASK];
+		}
+	}
+	
+	private boolean changeState(int index, PieceState from, PieceState to)
+	{
+		while(true) {
+			int s = states.get(index);
+			if((s & STATE_MASK) != from.ordinal())
+				return false;
+			if(states.compareAndSet(index, s, (s & ~STATE_MASK) | to.ordinal()))
+				return true;
+		}
+	}
+	
 	public int getPieceLength()
 	{
 		return pieceLength;
@@ -234,9 +450,7 @@ public class Pieces {
 	}
 	
 	interface PieceSelector {
-		public void addPiece(int index);
 		public PieceFrag selectPiece(Peer peer);
-		public void movePiecesTo(PieceSelector ps);
 	}
 	
 	
@@ -246,191 +460,677 @@ public class Pieces {
 	}
 	
 	
-	public void receivedFragment(PieceFrag f, byte[] block)
+	// returns false if the block was already there or is being received
+	public boolean receivedFragment(PieceFrag f, byte[] block, Peer peer)
 	{
-		Piece piece = p[f.index];
-		synchronized(piece) {
-			if(piece.have.get(f.frag))
-				return;
-			piece.have.set(f.frag);
+		int bit = toBlockBit(f.index, f.frag);
+		if(getBit(have, bit))
+			return false;
+		
+		while(true) {
+			int s = states.get(f.index);
+			int state = s & STATE_MASK;
+			// everything is there already or the piece is being reset
+			if(state != PieceState.FREE.ordinal() && state != PieceState.DOWNLOADING.ordinal())
+				return false;
+			
+			if((s & BUFFERED) != 0) {
+				// someone else is reading this block into the buffer right now
+				if(!setBit(receiving, bit))
+					return false;
+				ByteBuffer b = buffers.get(f.index);
+				if(b == null || getBit(have, bit)) {
+					clearBit(receiving, bit);
+					return false;
+				}
+				
+				b = b.duplicate();
+				b.position(f.frag*FRAG_LENGTH);
+				b.put(block);
+				return receivedBlock(f, peer);
+			}
+			
+			// the buffer can't be taken for this piece anymore
+			if((s & ON_DISK) != 0 || states.compareAndSet(f.index, s, s | ON_DISK))
+				break;
 		}
+		
+		if(!setBit(have, bit))
+			return false;
+		blockSources.set(toFragIndex(f.index, f.frag), peer.getInetAddress());
+		hashFragment(f, block);
+		haveCounts.incrementAndGet(f.index);
 		fragmentSaver.writePieceFragment(f.index, f.frag*FRAG_LENGTH, block);
+		return true;
+	}
+	
+	// returns a view of the piece assembly buffer where the block payload should be 
+	// read to, or null if the block has to be passed to receivedFragment()
+	public ByteBuffer getBlockBuffer(PieceFrag f)
+	{
+		int s = states.get(f.index);
+		if((s & STATE_MASK) != PieceState.DOWNLOADING.ordinal() || (s & BUFFERED) == 0)
+			return null;
+			
+		// the receiving bit is a lease on the block area of the buffer
+		int bit = toBlockBit(f.index, f.frag);
+		if(getBit(have, bit) || !setBit(receiving, bit))
+			return null;
+			
+		ByteBuffer b = buffers.get(f.index);
+		if(b == null || getBit(have, bit)) {
+			clearBit(receiving, bit);
+			return null;
+		}
+		
+		b = b.duplicate();
+		b.limit(f.frag*FRAG_LENGTH + getFragLength(f));
+		b.position(f.frag*FRAG_LENGTH);
+		return b;
+	}
+	
+	// the view returned by getBlockBuffer() was filled, returns false if the
+	// block was already there
+	public boolean receivedBlock(PieceFrag f, Peer peer)
+	{
+		int bit = toBlockBit(f.index, f.frag);
+		boolean added = setBit(have, bit);
+		clearBit(receiving, bit);
+		if(!added)
+			return false;
+		
+		// the counter increment of the last block publishes it to the verifier
+		blockSources.set(toFragIndex(f.index, f.frag), peer.getInetAddress());
+		if(haveCounts.incrementAndGet(f.index) == getPieceFragCount(f.index))
+			bufferedPieceCompleted(f.index);
+		return true;
+	}
+	
+	// the request itself has to be given back with pieceReceiveFailed()
+	public void receiveBlockFailed(PieceFrag f)
+	{
+		clearBit(receiving, toBlockBit(f.index, f.frag));
+	}
+	
+	// only the thread that added the last block gets here
+	private void bufferedPieceCompleted(int index)
+	{
+		pieceCompleted(index);
+		ByteBuffer b = buffers.get(index).duplicate();
+		b.position(0);
+		b.limit(getPieceLength(index));
+		fragmentSaver.writePiece(index, b);
+	}
+	
+	private void pieceCompleted(int index)
+	{
+		// late blocks can complete a piece that was given back
+		if(setState(index, PieceState.DOWNLOADED) == PieceState.FREE) {
+			removeFree(index);
+			picker.remove(index);
+		}
+	}
+	
+	private ByteBuffer allocateBuffer()
+	{
+		synchronized(freeBuffers) {
+			ByteBuffer b = freeBuffers.poll();
+			if(b != null)
+				return b;
+			
+			if(buffersMemory + pieceLength > maxBuffersMemory)
+				return null;
+			buffersMemory += pieceLength;
+			return ByteBuffer.allocateDirect(pieceLength);
+		}
+	}
+	
+	private void recycleBuffer(ByteBuffer b)
+	{
+		synchronized(freeBuffers) {
+			if(buffersMemory > maxBuffersMemory) {
+				buffersMemory -= pieceLength;
+			} else {
+				b.clear();
+				freeBuffers.add(b);
+			}
+		}
+	}
+	
+	private void releaseBuffer(int index)
+	{
+		while(true) {
+			int s = states.get(index);
+			if((s & BUFFERED) == 0 || states.compareAndSet(index, s, s & ~BUFFERED))
+				break;
+		}
+		
+		ByteBuffer b = buffers.getAndSet(index, null);
+		if(b != null)
+			recycleBuffer(b);
+	}
+	
+	public void setMaxBuffersMemory(long maxBuffersMemory)
+	{
+		synchronized(freeBuffers) {
+			this.maxBuffersMemory = maxBuffersMemory;
+			while(buffersMemory > maxBuffersMemory && freeBuffers.poll() != null)
+				buffersMemory -= pieceLength;
+		}
+	}
+	
+	public long getBuffersMemory()
+	{
+		synchronized(freeBuffers) {
+			return buffersMemory;
+		}
+	}
+	
+	public void writePieceCompleted(int index)
+	{
+		for(int frag = 0; frag < getPieceFragCount(index); ++frag)
+			setBit(written, toFragIndex(index, frag));
+		writeCounts.set(index, getPieceFragCount(index));
 	}
 	
 	public void writeFragmentCompleted(int index, int begin, int length)
 	{
-		Piece piece = p[index];
 		int frag = begin / FRAG_LENGTH;
-		have.set(toFragIndex(index, frag));
+		setBit(written, toFragIndex(index, frag));
 		
-		synchronized(piece) {
-			++piece.writeCount;
-			if(piece.writeCount == getPieceFragCount(index)) {
-				piece.state = PieceState.DOWNLOADED;
+		if(writeCounts.incrementAndGet(index) == getPieceFragCount(index)) {
+			pieceCompleted(index);
+			
+			// a failed piece is read back anyway to judge the senders' blocks
+			byte[] hash = finishHash(index);
+			if(hash != null && hashEquals(index, hash) && !failedPieces.containsKey(index)) {
+				hashedWithoutReadCount.incrementAndGet();
+				pieceVerified(index, owners.getAndSet(index, null));
+			} else {
 				fragmentSaver.readPiece(index);
-				//System.err.println(index + " piece " + p[index].peer);
 			}
 		}
 	}
 	
-	public void readPieceCompleted(int index, byte[] buf)
-	{		
-		try {
-			MessageDigest md = MessageDigest.getInstance("SHA-1");
-			byte[] calcHash = md.digest(buf);
-			Piece piece = p[index];
+	// blocks are hashed in order, the ones ahead are held until the gap is 
+	// filled or the memory runs out
+	private void hashFragment(PieceFrag f, byte[] block)
+	{
+		PieceHasher h = hashers.get(f.index);
+		if(h == null)
+			return;
+		
+		synchronized(h) {
+			if(h.dropped)
+				return;
 			
-			if(Arrays.equals(calcHash, piece.hash)) {
-				verified.set(index);
-				
-				synchronized(piece) {
-					piece.state = PieceState.VERIFIED;
+			if(f.frag != h.nextFrag) {
+				if(hashPendingMemory.addAndGet(block.length) > maxHashPendingMemory) {
+					hashPendingMemory.addAndGet(-block.length);
+					hashers.compareAndSet(f.index, h, null);
+					release(h);
+				} else {
+					h.pending.put(f.frag, block);
 				}
-								
-				++piecesDownloadedCount;
-				verifiedDownloadCount += getPieceLength(index);
-				tor.addVerifiedPieceToPeers(index);
-				
-				if(piece.peer != null) {
-					if(!piece.peer.isTrusted())
-						piece.peer.setTrusted();
-				}
-				
-				if(piecesDownloadedCount == piecesCount)
-					tor.setCompleted();
-				
 				return;
 			}
 			
-			tor.addPieceToPeers(index);
-			
-			//System.err.println("piece " + index + " failed verification");
-			if(piece.peer != null) {
-				//System.err.println("banning " + piece.peer.getInetAddress());
-				tor.blacklistAddress(piece.peer.getInetAddress());
-			}
-			
-			for(int frag = 0; frag < getPieceFragCount(index); ++frag)
-				have.clear(toFragIndex(index, frag));
-			synchronized(piece) {
-				piece.writeCount = 0;
-				piece.requested.clear();
-				piece.have.clear();
-				piece.state = PieceState.FREE;
+			h.md.update(block);
+			++h.nextFrag;
+			byte[] b;
+			while((b = h.pending.remove(h.nextFrag)) != null) {
+				hashPendingMemory.addAndGet(-b.length);
+				h.md.update(b);
+				++h.nextFrag;
 			}
-			freePiecesCount.incrementAndGet();
-		} catch(NoSuchAlgorithmException e) {
-			
 		}
 	}
-
-
-	public void pieceReceiveFailed(List<PieceFrag> l) 
+	
+	// returns null if the piece has to be read back from the disk
+	private byte[] finishHash(int index)
 	{
-		for(PieceFrag f : l) {
-			synchronized(p[f.index]) {
-				p[f.index].requested.clear(f.frag);
+		PieceHasher h = hashers.getAndSet(index, null);
+		if(h == null)
+			return null;
+		
+		synchronized(h) {
+			if(h.dropped || h.nextFrag < getPieceFragCount(index)) {
+				release(h);
+				return null;
 			}
+			return h.md.digest();
 		}
+	}
+	
+	private void dropHasher(int index)
+	{
+		PieceHasher h = hashers.getAndSet(index, null);
+		if(h == null)
+			return;
 		
-		int prevIndex = -1;
-		for(PieceFrag f : l) {
-			if(f.index != prevIndex) {
-				prevIndex = f.index;
-				Piece piece = p[f.index];
-				synchronized(piece) {
-					piece.state = PieceState.FREE;
+		synchronized(h) {
+			release(h);
+		}
+	}
+	
+	// must hold the hasher lock
+	private void release(PieceHasher h)
+	{
+		h.dropped = true;
+		for(byte[] b : h.pending.values())
+			hashPendingMemory.addAndGet(-b.length);
+		h.pending.clear();
+	}
+	
+	public void readPieceCompleted(int index, ByteBuffer buf)
+	{		
+		MessageDigest md = PieceVerifier.sha1();
+		md.update(buf.duplicate());
+		byte[] calcHash = md.digest();
+		Peer peer = owners.getAndSet(index, null);
+		
+		if(hashEquals(index, calcHash)) {
+			banFailedSources(index, buf);
+			pieceVerified(index, peer);
+			return;
+		}
+		
+		//System.err.println("piece " + index + " failed verification");
+		recordFailedPiece(index, buf);
+		
+		// the piece stays DOWNLOADED while it is reset, no block is
+		// accepted for it until it is FREE again
+		for(int frag = 0; frag < getPieceFragCount(index); ++frag)
+			clearBit(written, toFragIndex(index, frag));
+		writeCounts.set(index, 0);
+		haveCounts.set(index, 0);
+		clearBits(requested, index);
+		clearBits(have, index);
+		clearBits(receiving, index);
+		releaseBuffer(index);
+		dropHasher(index);
+		states.set(index, PieceState.FREE.ordinal());
+		addFree(index);
+		picker.add(index);
+	}
+	
+	private void pieceVerified(int index, Peer peer)
+	{
+		setBit(verified, index);
+		setState(index, PieceState.VERIFIED);
+		releaseBuffer(index);
+		
+		piecesDownloadedCount.incrementAndGet();
+		verifiedDownloadCount.addAndGet(getPieceLength(index));
+		tor.addVerifiedPieceToPeers(index);
+		
+		if(peer != null) {
+			if(!peer.isTrusted())
+				peer.setTrusted();
+		}
+		
+		if(wantedPieceVerified(index))
+			tor.setCompleted();
+	}
+	
+	private byte[] blockDigest(ByteBuffer buf, int index, int frag)
+	{
+		ByteBuffer b = buf.duplicate();
+		b.position(buf.position() + frag*FRAG_LENGTH);
+		b.limit(b.position() + getFragLength(new PieceFrag(index, frag)));
+		MessageDigest md = PieceVerifier.sha1();
+		md.update(b);
+		return md.digest();
+	}
+	
+	// remembers what every peer sent, they are judged when the piece passes 
+	// the check. if all the blocks came from one peer it is banned right away
+	private void recordFailedPiece(int index, ByteBuffer buf)
+	{
+		FailedPiece failed = failedPieces.get(index);
+		if(failed == null) {
+			failed = new FailedPiece();
+			FailedPiece old = failedPieces.putIfAbsent(index, failed);
+			if(old != null)
+				failed = old;
+		}
+		
+		Set<InetAddress> sources = new HashSet<>();
+		boolean unknown = false;
+		synchronized(failed) {
+			failed.failTime = System.currentTimeMillis();
+			for(int frag = 0; frag < getPieceFragCount(index); ++frag) {
+				InetAddress source = blockSources.getAndSet(toFragIndex(index, frag), null);
+				if(source == null) {
+					// it was on the disk already
+					unknown = true;
+					continue;
 				}
-				freePiecesCount.incrementAndGet();
 				
-				tor.addPieceToPeers(f.index);
+				FailedBlock b = new FailedBlock();
+				b.frag = frag;
+				b.digest = blockDigest(buf, index, frag);
+				b.source = source;
+				failed.blocks.add(b);
+				failed.sources.add(source);
+				sources.add(source);
 			}
 		}
+		
+		if(!unknown && sources.size() == 1) {
+			failedPieces.remove(index);
+			tor.blacklistAddress(sources.iterator().next());
+		}
 	}
-
+	
+	// bans the peers that sent blocks that differ from the good ones
+	private void banFailedSources(int index, ByteBuffer buf)
+	{
+		for(int frag = 0; frag < getPieceFragCount(index); ++frag)
+			blockSources.set(toFragIndex(index, frag), null);
+		
+		FailedPiece failed = failedPieces.remove(index);
+		if(failed == null)
+			return;
+		
+		byte[][] good = new byte[getPieceFragCount(index)][];
+		Set<InetAddress> banned = new HashSet<>();
+		synchronized(failed) {
+			for(FailedBlock b : failed.blocks) {
+				if(good[b.frag] == null)
+					good[b.frag] = blockDigest(buf, index, b.frag);
+				if(!Arrays.equals(good[b.frag], b.digest))
+					banned.add(b.source);
+			}
+		}
+		
+		for(InetAddress addr : banned) {
+			//System.err.println("banning " + addr + " for piece " + index);
+			tor.blacklistAddress(addr);
+		}
+	}
+	
+	// a failed piece is fetched from someone else than its senders for a while 
+	// if another peer has it
+	private boolean isFailedSource(int index, Peer peer)
+	{
+		FailedPiece failed = failedPieces.get(index);
+		if(failed == null)
+			return false;
+		
+		synchronized(failed) {
+			if(System.currentTimeMillis() - failed.failTime > REDOWNLOAD_TIME || !failed.sources.contains(peer.getInetAddress()))
+				return false;
+		}
+		return picker.getAvailability(index) > 1;
+	}
+	
+	private boolean hashEquals(int index, byte[] hash)
+	{
+		for(int i = 0; i < 20; ++i) {
+			if(hashes[index*20 + i] != hash[i])
+				return false;
+		}
+		return true;
+	}
+	
+	
+	// the requests will not be answered, a piece nobody is downloading anymore 
+	// goes back to the peers' selectors, returns how many blocks were reclaimed
+	public int pieceReceiveFailed(List<PieceFrag> l) 
+	{
+		int reclaimed = 0;
+		List<Integer> freed = new ArrayList<>();
+		for(PieceFrag f : l) {
+			int bit = toBlockBit(f.index, f.frag);
+			if(getBit(have, bit) || getBit(receiving, bit) || !clearBit(requested, bit))
+				continue;
+			++reclaimed;
+				
+			if(endGame || outstandingRequests(f.index))
+				continue;
+			if(!changeState(f.index, PieceState.DOWNLOADING, PieceState.FREE))
+				continue;
+			// nothing was received, the buffer goes back to the pool instead
+			// of waiting for someone to pick the piece again
+			if(haveCounts.get(f.index) == 0 && !hasBits(receiving, f.index))
+				releaseBuffer(f.index);
+			addFree(f.index);
+			freed.add(f.index);
+		}
+		
+		for(int index : freed)
+			picker.add(index);
+		return reclaimed;
+	}
+	
+	private boolean outstandingRequests(int index)
+	{
+		for(int w = index*wordsPerPiece; w < (index+1)*wordsPerPiece; ++w) {
+			if((requested.get(w) & ~have.get(w)) != 0)
+				return true;
+		}
+		return false;
+	}
+	
 	public boolean requestPiece(int index, Peer peer)
 	{
-		Piece piece = p[index];
-		synchronized(piece) {
-			if(piece.state != PieceState.FREE) {
+		if(isFailedSource(index, peer))
+			return false;
+		
+		while(true) {
+			int s = states.get(index);
+			int state = s & STATE_MASK;
+			if(state != PieceState.FREE.ordinal()) {
 				if(endGame) {
-					return peer.isTrusted() && piece.state == PieceState.DOWNLOADING;
+					return peer.isTrusted() && state == PieceState.DOWNLOADING.ordinal();
 				}
 				return false;
 			}
 	
-			piece.state = PieceState.DOWNLOADING;
-		
-			if(piece.have.cardinality() == 0) {
-				piece.peer = peer;
-			} else {
-				piece.peer = null;
+			// a piece nothing was received for yet is assembled in memory
+			ByteBuffer b = null;
+			if((s & (BUFFERED | ON_DISK)) == 0 && haveCounts.get(index) == 0) {
+				b = allocateBuffer();
+				if(b != null && !buffers.compareAndSet(index, null, b)) {
+					recycleBuffer(b);
+					b = null;
+				}
 			}
+		
+			int next = (s & ~STATE_MASK) | PieceState.DOWNLOADING.ordinal() | (b != null ? BUFFERED : 0);
+			if(states.compareAndSet(index, s, next))
+				break;
+			
+			if(b != null && buffers.compareAndSet(index, b, null))
+				recycleBuffer(b);
 		}
 		
-		freePiecesCount.decrementAndGet();
+		if(haveCounts.get(index) == 0) {
+			owners.set(index, peer);
+			// a piece without a buffer is hashed while it is downloaded
+			if((states.get(index) & BUFFERED) == 0)
+				hashers.compareAndSet(index, null, new PieceHasher());
+		} else {
+			owners.set(index, null);
+		}
+		removeFree(index);
+		picker.remove(index);
 		return true;
 	}
 	
 	public PieceFrag requestPieceFrag(int index)
 	{
-		Piece piece = p[index];
+		if(getState(index) != PieceState.DOWNLOADING)
+			return null;
+		
+		int frag = claimFirstClear(requested, index);
+		if(frag >= 0)
+			return new PieceFrag(index, frag);
+		
+		if(!endGame)
+			return null;
+		
 		int count = getPieceFragCount(index);
+		int[] l = new int[count];
+		int n = 0;
+		for(frag = 0; frag < count; ++frag) {
+			if(!getBit(have, toBlockBit(index, frag)))
+				l[n++] = frag;
+		}
 		
-		synchronized(piece) {
-			if(piece.state != PieceState.DOWNLOADING)
-				return null;
-			
-			int frag = 0;
-			while(frag < count && piece.requested.get(frag))
-				++frag;
-			if(frag < count) {
-				piece.requested.set(frag);
-				return new PieceFrag(index, frag);
-			}
-			
-			
-			if(!endGame)
-				return null;
-				
-			ArrayList<Integer> l = new ArrayList<>();
-			for(frag = 0; frag < count; ++frag) {
-				if(!piece.have.get(frag))
-					l.add(frag);
+		if(n == 0)
+			return null;
+		
+		return new PieceFrag(index, l[gen.nextInt(n)]);
+	}
+	
+	// a piece gets the highest priority of the files it overlaps, so pieces 
+	// shared by a skipped and a wanted file are still downloaded
+	public void setFilePriorities(List<FragmentSaver.FileEntry> files)
+	{
+		int[] prio = new int[piecesCount];
+		long offset = 0;
+		for(FragmentSaver.FileEntry e : files) {
+			if(e.length > 0) {
+				int first = (int)(offset / pieceLength);
+				int last = (int)((offset + e.length - 1) / pieceLength);
+				for(int i = first; i <= last; ++i)
+					prio[i] = Math.max(prio[i], e.priority);
 			}
-					
-			if(l.isEmpty())
-				return null;
-					
-			frag = l.get(gen.nextInt(l.size()));
-			return new PieceFrag(index, frag);
+			offset += e.length;
 		}
 		
+		for(int i = 0; i < piecesCount; ++i)
+			picker.setPriority(i, prio[i]);
+		updateWanted();
 	}
-
+	
+	public boolean isWanted(int index)
+	{
+		return picker.getPriority(index) > 0;
+	}
+	
+	public boolean isFree(int index)
+	{
+		return getState(index) == PieceState.FREE;
+	}
+	
+	private synchronized void updateWanted()
+	{
+		int count = 0;
+		int free = 0;
+		long bytes = 0;
+		for(int i = 0; i < piecesCount; ++i) {
+			if(!isWanted(i) || isVerified(i))
+				continue;
+			++count;
+			bytes += getPieceLength(i);
+			if(isFree(i))
+				++free;
+		}
+		
+		wantedLeftCount.set(count);
+		wantedLeftBytes.set(bytes);
+		freePiecesCount.set(free);
+	}
+	
+	// returns true if it was the last piece of the selection
+	private boolean wantedPieceVerified(int index)
+	{
+		if(!isWanted(index))
+			return false;
+		wantedLeftBytes.addAndGet(-getPieceLength(index));
+		return wantedLeftCount.decrementAndGet() == 0;
+	}
+	
+	public int getWantedLeftCount()
+	{
+		return wantedLeftCount.get();
+	}
+	
+	public long getWantedLeftBytes()
+	{
+		return wantedLeftBytes.get();
+	}
+	
+	public PiecePicker getPicker()
+	{
+		return picker;
+	}
+	
+	// a block of a piece that is needed urgently, even if it was already
+	// requested from someone else
+	public PieceFrag requestDuplicateFrag(int index, Peer peer)
+	{
+		if(getState(index) != PieceState.DOWNLOADING)
+			return null;
+		
+		int count = getPieceFragCount(index);
+		for(int frag = 0; frag < count; ++frag) {
+			int bit = toBlockBit(index, frag);
+			if(getBit(have, bit) || getBit(receiving, bit))
+				continue;
+		
+			PieceFrag f = new PieceFrag(index, frag);
+			if(!peer.isRequested(f)) {
+				setBit(requested, bit);
+				return f;
+			}
+		}
+		return null;
+	}
+	
 	public boolean isEndGameOn() 
 	{
 		return endGame;
 	}
-
+	
 	public boolean haveFrag(PieceFrag f) 
 	{
-		Piece piece = p[f.index];
-		synchronized(piece) {
-			return piece.have.get(f.frag);
-		}
+		return getBit(have, toBlockBit(f.index, f.frag));
+	}
+	
+	public boolean isFragWritten(int index, int frag)
+	{
+		return getBit(written, toFragIndex(index, frag));
 	}
 	
 	public int getPiecesVerifiedCount()
 	{
-		return piecesDownloadedCount;
+		return piecesDownloadedCount.get();
+	}
+	
+	// pieces that went to the disk in blocks and were not read back
+	public int getHashedWithoutReadCount()
+	{
+		return hashedWithoutReadCount.get();
+	}
+	
+	public void setMaxHashPendingMemory(long maxHashPendingMemory)
+	{
+		this.maxHashPendingMemory = maxHashPendingMemory;
+	}
+	
+	// only the pieces the picker can hand out are counted, updateWanted()
+	// counts them again when the selection changes
+	private void addFree(int index)
+	{
+		if(isWanted(index))
+			freePiecesCount.incrementAndGet();
+	}
+	
+	private void removeFree(int index)
+	{
+		if(isWanted(index))
+			freePiecesCount.decrementAndGet();
 	}
 	
 	public int getFreePiecesCount()
 	{
 		return freePiecesCount.get();
 	}
-
+	
 	public void startEndGame() 
 	{
 		if(endGame)
@@ -438,17 +1138,19 @@ public class Pieces {
 		
 		//System.err.println("end-game on");
 		endGame = true;
+		List<Integer> downloading = new ArrayList<>();
 		for(int i = 0; i < piecesCount; ++i) {
-			if(p[i].state == PieceState.DOWNLOADING)
-				tor.addPieceToPeers(i);	
+			if(getState(i) == PieceState.DOWNLOADING)
+				downloading.add(i);
 		}
+		picker.startEndGame(downloading);
 	}
-
+	
 	public boolean save(ObjectOutputStream out) 
 	{
 		try {
-			out.writeObject(have);
-			out.writeObject(verified);
+			out.writeObject(toBitSet(written));
+			out.writeObject(toBitSet(verified));
 			return true;
 		} catch(IOException e) {
 			e.printStackTrace();
@@ -458,27 +1160,37 @@ public class Pieces {
 	
 	public long getVerifiedDownloadCount()
 	{
-		return verifiedDownloadCount;
+		return verifiedDownloadCount.get();
 	}
-
+	
 	public void setFragmentSaver(FragmentSaver fragmentSaver) 
 	{
 		this.fragmentSaver = fragmentSaver;
 	}
-
+	
 	public boolean isVerified(int index) 
 	{
-		return verified.get(index);
+		return getBit(verified, index);
 	}
-
+	
 	public byte[] getFrag(PeerFrag f) 
 	{
 		return fragmentSaver.readFrag((long)f.index*pieceLength + f.begin, f.length);
 	}
-
+	
+	public void readFrag(PeerFrag f, ByteBuffer dst)
+	{
+		fragmentSaver.readFrag((long)f.index*pieceLength + f.begin, dst);
+	}
+	
+	public long transferFrag(PeerFrag f, int offset, int length, WritableByteChannel target) throws IOException
+	{
+		return fragmentSaver.transferFrag((long)f.index*pieceLength + f.begin + offset, length, target);
+	}
+	
 	public boolean validFragToSend(int index, int begin, int length) 
 	{
-		if(index < 0 || index >= piecesCount || !verified.get(index))
+		if(index < 0 || index >= piecesCount || !isVerified(index))
 			return false;
 		
 		if(length <= 0 || length > FRAG_LENGTH)
@@ -489,32 +1201,56 @@ public class Pieces {
 		
 		return true;
 	}
-
+	
 	public void verifyFromLocalData() 
 	{
-		for(int i = 0; i < piecesCount; ++i) {
-			try {
-				byte[] bytes = fragmentSaver.readFrag(i*pieceLength, getPieceLength(i));
-				MessageDigest md = MessageDigest.getInstance("SHA-1");
-				byte[] hash = md.digest(bytes);
-				
-				if(Arrays.equals(hash, p[i].hash)) {
-					verified.set(i);
-					
-					synchronized(p[i]) {
-						p[i].state = PieceState.VERIFIED;
-					}
-									
-					++piecesDownloadedCount;
-					verifiedDownloadCount += getPieceLength(i);
-					
-					if(piecesDownloadedCount == piecesCount)
-						tor.setCompleted();
-				}
-				
-			} catch(NoSuchAlgorithmException e) {
-				
+		Recheck recheck = new Recheck(this, tor.getFiles());
+		recheck.start();
+		recheck.join();
+	}
+	
+	// a piece of the local data was hashed by a Recheck, returns true if it is good
+	boolean localPieceChecked(int index, byte[] hash)
+	{
+		if(!hashEquals(index, hash))
+			return false;
+		
+		localPieceVerified(index);
+		return true;
+	}
+	
+	// the data of the pieces may have changed on the disk, they have to be 
+	// checked again
+	void invalidate(BitSet changed)
+	{
+		for(int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i+1)) {
+			for(int frag = 0; frag < getPieceFragCount(i); ++frag)
+				clearBit(written, toFragIndex(i, frag));
+			if(clearBit(verified, i)) {
+				piecesDownloadedCount.decrementAndGet();
+				verifiedDownloadCount.addAndGet(-getPieceLength(i));
 			}
 		}
+		updateWanted();
+	}
+	
+	// the local data is known to be good, the torrent was just made from it
+	void setAllVerified()
+	{
+		for(int i = 0; i < piecesCount; ++i)
+			localPieceVerified(i);
+	}
+	
+	private void localPieceVerified(int index)
+	{
+		if(!setBit(verified, index))
+			return;
+		setState(index, PieceState.VERIFIED);
+		
+		piecesDownloadedCount.incrementAndGet();
+		verifiedDownloadCount.addAndGet(getPieceLength(index));
+		
+		if(wantedPieceVerified(index))
+			tor.setCompleted();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+package btclient;
+
+// transfer rate in bytes per second, smoothed over one second windows
+public class RateMeter {
+	private static final long WINDOW = 1000000000l;
+	private static final double ALPHA = 0.5;
+
+	private double rate;
+	private long current;
+	private long windowStart;
+
+	public RateMeter()
+	{
+		rate = 0;
+		current = 0;
+		windowStart = System.nanoTime();
+	}
+
+	public synchronized void add(long bytes)
+	{
+		roll(System.nanoTime());
+		current += bytes;
+	}
+
+	public synchronized double get()
+	{
+		roll(System.nanoTime());
+		return rate;
+	}
+
+	private void roll(long now)
+	{
+		long elapsed = now - windowStart;
+		if(elapsed < WINDOW)
+			return;
+
+		double sample = (double)current * WINDOW / elapsed;
+		rate = ALPHA * sample + (1-ALPHA) * rate;
+		current = 0;
+		windowStart = now;
+	}
+}
@@ -0,0 +1,258 @@
+package btclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// hashes the local data of a torrent in parallel, the files are read through
+// memory mappings. pieces are marked verified as soon as they are checked
+public class Recheck {
+	// how much data one task maps and hashes
+	private static final long LEAF_SIZE = 16l * 1024 * 1024;
+
+	private final Pieces pieces;
+	private final List<FragmentSaver.FileEntry> files;
+	private final long[] offsets; // where the files start in the torrent
+	private final long totalSize;
+	private final int pieceLength;
+	private final int leafPieces;
+	private final BitSet selected; // null if all the pieces are checked
+	private final int selectedCount;
+
+	private ForkJoinTask<?> task;
+
+	private AtomicInteger checkedCount;
+	private AtomicInteger verifiedCount;
+	private AtomicLong bytesCount;
+	private volatile long startTime;
+	private volatile long endTime;
+	private volatile boolean canceled;
+
+	public Recheck(Pieces pieces, List<FragmentSaver.FileEntry> files)
+	{
+		this(pieces, files, null);
+	}
+
+	// checks only the selected pieces
+	public Recheck(Pieces pieces, List<FragmentSaver.FileEntry> files, BitSet selected)
+	{
+		this.pieces = pieces;
+		this.selected = selected;
+		selectedCount = selected == null ? pieces.getCount() : selected.cardinality();
+		this.files = files;
+		offsets = new long[files.size()];
+		long offset = 0;
+		for(int i = 0; i < files.size(); ++i) {
+			offsets[i] = offset;
+			offset += files.get(i).length;
+		}
+		totalSize = offset;
+		pieceLength = pieces.getPieceLength();
+		leafPieces = (int)Math.max(1, LEAF_SIZE / pieceLength);
+
+		checkedCount = new AtomicInteger();
+		verifiedCount = new AtomicInteger();
+		bytesCount = new AtomicLong();
+	}
+
+	public synchronized void start()
+	{
+		if(task != null)
+			return;
+
+		startTime = System.nanoTime();
+		task = ForkJoinPool.commonPool().submit(new RecursiveAction() {
+			@Override
+			protected void compute()
+			{
+				try {
+					new Check(0, pieces.getCount()).compute();
+				} finally {
+					endTime = System.nanoTime();
+				}
+			}
+		});
+	}
+
+	// waits until all pieces were checked or the check was canceled
+	public void join()
+	{
+		ForkJoinTask<?> t;
+		synchronized(this) {
+			t = task;
+		}
+		if(t != null)
+			t.join();
+	}
+
+	public void cancel()
+	{
+		canceled = true;
+	}
+
+	public boolean isCanceled()
+	{
+		return canceled;
+	}
+
+	public boolean isDone()
+	{
+		return endTime != 0;
+	}
+
+	public int getCheckedCount()
+	{
+		return checkedCount.get();
+	}
+
+	public int getVerifiedCount()
+	{
+		return verifiedCount.get();
+	}
+
+	public double getProgress()
+	{
+		return selectedCount == 0 ? 1.0 : (double)checkedCount.get() / selectedCount;
+	}
+
+	// hashed bytes per second
+	public double getThroughput()
+	{
+		long start = startTime;
+		if(start == 0)
+			return 0;
+		long end = endTime != 0 ? endTime : System.nanoTime();
+		return end == start ? 0 : bytesCount.get() * 1e9 / (end - start);
+	}
+
+	private class Check extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		final int from;
+		final int to;
+
+		Check(int from, int to)
+		{
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(canceled)
+				return;
+
+			if(to - from > leafPieces) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Check(from, mid), new Check(mid, to));
+				return;
+			}
+
+			if(selected != null) {
+				int first = selected.nextSetBit(from);
+				if(first < 0 || first >= to)
+					return;
+			}
+
+			long begin = (long)from * pieceLength;
+			long end = Math.min((long)to * pieceLength, totalSize);
+			List<Long> starts = new ArrayList<>();
+			List<MappedByteBuffer> maps = new ArrayList<>();
+			map(begin, end, starts, maps);
+
+			try {
+				for(int index = from; index < to && !canceled; ++index) {
+					if(selected != null && !selected.get(index))
+						continue;
+					byte[] hash = hash((long)index * pieceLength, pieces.getPieceLength(index), starts, maps);
+					if(hash != null && pieces.localPieceChecked(index, hash))
+						verifiedCount.incrementAndGet();
+					checkedCount.incrementAndGet();
+				}
+			} finally {
+				// only the data of the running tasks stays mapped
+				for(MappedByteBuffer map : maps)
+					MappedStorage.Unmapper.unmap(map);
+			}
+		}
+
+		// maps the parts of the files between begin and end, data that is not
+		// on the disk is left out. the mappings stay valid after the files
+		// are closed, so only the files of this task are open
+		private void map(long begin, long end, List<Long> starts, List<MappedByteBuffer> maps)
+		{
+			for(int i = firstFile(begin); i < offsets.length && offsets[i] < end; ++i) {
+				long lo = Math.max(begin, offsets[i]);
+				long hi = Math.min(end, offsets[i] + files.get(i).length);
+				File f = new File(files.get(i).pathname);
+				if(lo >= hi || !f.isFile())
+					continue;
+
+				try(RandomAccessFile file = new RandomAccessFile(f, "r")) {
+					FileChannel fc = file.getChannel();
+					hi = Math.min(hi, offsets[i] + fc.size());
+					if(lo >= hi)
+						continue;
+					maps.add(fc.map(FileChannel.MapMode.READ_ONLY, lo - offsets[i], hi - lo));
+					starts.add(lo);
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		// the last file starting at or before the offset
+		private int firstFile(long offset)
+		{
+			int i = Arrays.binarySearch(offsets, offset);
+			if(i < 0)
+				return Math.max(0, -i-2);
+			// skip back over the empty files starting there too
+			while(i > 0 && offsets[i-1] == offset)
+				--i;
+			return i;
+		}
+
+		// a piece can straddle several files, returns null if a part is missing
+		private byte[] hash(long begin, int length, List<Long> starts, List<MappedByteBuffer> maps)
+		{
+			MessageDigest md = PieceVerifier.sha1();
+			long pos = begin;
+			long end = begin + length;
+			for(int i = 0; i < maps.size() && pos < end; ++i) {
+				long start = starts.get(i);
+				ByteBuffer map = maps.get(i);
+				if(start + map.capacity() <= pos)
+					continue;
+				if(start > pos)
+					return null;
+
+				ByteBuffer b = map.duplicate();
+				b.position((int)(pos - start));
+				b.limit((int)(Math.min(end, start + map.capacity()) - start));
+				pos += b.remaining();
+				md.update(b);
+			}
+
+			if(pos < end)
+				return null;
+
+			bytesCount.addAndGet(length);
+			return md.digest();
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package btclient;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+// how FragmentSaver reaches the data of the files, positions are relative
+// to the start of the file
+public interface Storage {
+	public void write(FragmentSaver.FileEntry e, long pos, ByteBuffer src) throws IOException;
+
+	// returns false if the file does not exist, dst is left as it is then
+	public boolean read(FragmentSaver.FileEntry e, long pos, ByteBuffer dst) throws IOException;
+
+	// returns how many bytes were sent, less than length if the target is full
+	public long transfer(FragmentSaver.FileEntry e, long pos, long length, WritableByteChannel target) throws IOException;
+
+	// the file is not going to be used for a while
+	public void close(FragmentSaver.FileEntry e);
+
+	public void closeAll();
+}
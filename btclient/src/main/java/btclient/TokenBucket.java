@@ -0,0 +1,73 @@
+package btclient;
+
+// refilled lazily from the clock, a rate of 0 means unlimited
+public class TokenBucket {
+	private static final long BURST_TIME = 100000000l;
+	private static final long MIN_BURST = 32 * 1024;
+	
+	private long rate;
+	private double tokens;
+	private long last;
+	
+	public TokenBucket(long rate)
+	{
+		this.rate = rate;
+		last = System.nanoTime();
+		tokens = capacity();
+	}
+	
+	public synchronized long getRate()
+	{
+		return rate;
+	}
+	
+	public synchronized void setRate(long rate)
+	{
+		refill();
+		this.rate = rate;
+		tokens = Math.min(tokens, capacity());
+	}
+	
+	public synchronized long available()
+	{
+		if(rate <= 0)
+			return Long.MAX_VALUE;
+		refill();
+		return (long)tokens;
+	}
+	
+	// may leave the bucket in debt, the debt is paid off before anything 
+	// else is allowed through
+	public synchronized void consume(long n)
+	{
+		if(rate <= 0)
+			return;
+		refill();
+		tokens -= n;
+	}
+	
+	// nanoseconds until at least amount tokens are available
+	public synchronized long delay(long amount)
+	{
+		if(rate <= 0)
+			return 0;
+		refill();
+		amount = Math.min(amount, capacity());
+		if(tokens >= amount)
+			return 0;
+		return (long)((amount - tokens) * 1e9 / rate);
+	}
+	
+	private long capacity()
+	{
+		return Math.max(rate * BURST_TIME / 1000000000l, MIN_BURST);
+	}
+	
+	private void refill()
+	{
+		long now = System.nanoTime();
+		if(rate > 0)
+			tokens = Math.min(capacity(), tokens + (now - last) * (double)rate / 1e9);
+		last = now;
+	}
+}
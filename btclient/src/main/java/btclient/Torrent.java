@@ -3,6 +3,7 @@ package btclient;
 
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -10,11 +11,11 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.nio.channels.*;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -23,6 +24,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 
@@ -47,14 +50,13 @@ public class Torrent {
 	private byte[] peerId;
 	
 	private long totalSize;
-	private volatile long downloadCount;
-	private volatile long uploadCount;
+	private AtomicLong downloadCount;
+	private AtomicLong uploadCount;
 	
-	private ServerSocket listenSock;
 	private int listenPort;
 	
 	private int maxPeers = 80;
-	private volatile int peersCount;
+	private AtomicInteger peersCount;
 	
 	private List<Peer> peers;
 	private Set<InetSocketAddress> peersAddresses;
@@ -71,19 +73,36 @@ public class Torrent {
 	private static Serializer serializer;
 	
 	private volatile boolean streaming;
+	private volatile long playbackOffset;
+	private volatile long streamingLookahead = DEFAULT_STREAMING_LOOKAHEAD;
+	private volatile long playbackRate = DEFAULT_PLAYBACK_RATE;
+	
+	public static final long DEFAULT_STREAMING_LOOKAHEAD = 8l * 1024 * 1024;
+	public static final long DEFAULT_PLAYBACK_RATE = 1024 * 1024;
 	private volatile boolean completed;
 	
 	private boolean uploadOn = true;
 	
+	private volatile boolean zeroCopyUpload = true;
+	
 	private volatile int maxDownloadSpeed;
 	private volatile int maxUploadSpeed;
 	
-	private volatile long lastDownloadCount;
-	private volatile long lastUploadCount;
+	private TokenBucket downloadBucket;
+	private TokenBucket uploadBucket;
+	
+	private Choker choker;
+	
+	private AtomicLong reclaimedRequests;
+	private AtomicLong timedOutRequests;
+	private AtomicLong wastedCount;
 	
-	private volatile long lastQueryTime;
+	private AtomicLong sendSyscalls;
+	private AtomicLong sentBytes;
 	
-	private Selector selector;
+	private PeerReactor reactor;
+	
+	private volatile Recheck recheck;
 	
 	public Torrent(File file) throws IOException
 	{
@@ -134,8 +153,8 @@ public class Torrent {
 			out.write((x & 0xFF000000) >>> 24);
 			System.arraycopy(out.toByteArray(), 0, peerId, 0, out.size());
 			
-			uploadCount = 0;
-			downloadCount = 0;
+			uploadCount = new AtomicLong();
+			downloadCount = new AtomicLong();
 						
 			state = State.IDLE;
 			
@@ -145,15 +164,24 @@ public class Torrent {
 			completed = false;
 			
 			peers = Collections.synchronizedList(new LinkedList<Peer>());
-			peersCount = 0;
+			peersCount = new AtomicInteger();
 			
 			maxDownloadSpeed = 0;
 			maxUploadSpeed = 0;
 			
-			lastDownloadCount = 0;
-			lastUploadCount = 0;
+			downloadBucket = new TokenBucket(0);
+			uploadBucket = new TokenBucket(0);
+			
+			choker = new Choker(Choker.DEFAULT_UPLOAD_SLOTS);
+			
+			reactor = PeerReactor.getInstance();
+			
+			reclaimedRequests = new AtomicLong();
+			timedOutRequests = new AtomicLong();
+			wastedCount = new AtomicLong();
 			
-			lastQueryTime = System.currentTimeMillis();
+			sendSyscalls = new AtomicLong();
+			sentBytes = new AtomicLong();
 		} catch(Exception e) {
 			throw new IOException("invalid file format");
 		}
@@ -208,9 +236,22 @@ public class Torrent {
 	{
 		try {
 			downloadDirectory = (String)in.readObject();
-			return pieces.init(in);
-
-		} catch (IOException | ClassNotFoundException e) {
+			fragmentSaver.updatePaths();
+			if(!pieces.init(in))
+				return false;
+			
+			try {
+				int[] priorities = (int[])in.readObject();
+				for(int i = 0; i < priorities.length && i < files.size(); ++i)
+					files.get(i).priority = priorities[i];
+				
+				recheckChangedFiles((long[])in.readObject());
+			} catch(EOFException e) {
+				// saved before file priorities or file stamps existed
+			}
+			pieces.setFilePriorities(files);
+			return true;
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
 			e.printStackTrace();
 			return false;
 		} 
@@ -220,6 +261,9 @@ public class Torrent {
 	{
 		if(state != State.IDLE)
 			return true;
+		// wait for the recheck or cancel it first
+		if(recheck != null && !recheck.isDone())
+			return false;
 		
 		if(completed) {
 			if(!uploadOn)
@@ -229,28 +273,26 @@ public class Torrent {
 			state = State.RUNNING;
 		}
 		
-		if(!initListenSocket()) {
-			state = State.IDLE;
-			return false;
-		}
-		
 		peersAddresses = Collections.synchronizedSet(new HashSet<InetSocketAddress>());
 		candidatePeers = Collections.synchronizedList(new LinkedList<InetSocketAddress>());
 		blacklist = Collections.synchronizedSet(new HashSet<InetAddress>());
 		
-		peersCount = 0;
+		peersCount.set(0);
 		
 		pieces.init();
 		
-		try {
-			selector = Selector.open();
-		} catch(IOException e) {
-			System.err.println(this + "Selector.open() failed: " + e.getMessage());
+		if(!reactor.addTorrent(this)) {
+			state = State.IDLE;
+			return false;
+		}
+		
+		if(!initListenSocket()) {
+			reactor.removeTorrent(this);
+			state = State.IDLE;
 			return false;
 		}
 		
 		fragmentSaver.start();
-		peerManager.start();
 		announcer.start();
 
 		
@@ -266,12 +308,13 @@ public class Torrent {
 		
 		announcer.stop();
 		
-		try {
-			listenSock.close();
-		} catch(IOException e) {		
-		}
+		reactor.removeTorrent(this);
+		// peers are ended outside the list lock, a peer may need it to give 
+		// back its requests. each is ended on its own event loop
+		for(Peer peer : getPeers())
+			peer.disconnect();
+		peers.clear();
 		
-		peerManager.stop();
 		fragmentSaver.stop();
 	}
 	
@@ -284,130 +327,129 @@ public class Torrent {
 	
 	private boolean initListenSocket()
 	{
+		PeerListener listener = PeerListener.getInstance();
+		if(!listener.open())
+			return false;
+		listenPort = listener.getPort();
+		return true;
+	}
+	
+	// called by the peer listener when a handshake for this torrent arrived
+	boolean acceptPeer(SelectionKey key, byte[] handshake)
+	{
+		if(state != State.RUNNING && state != State.SEEDING)
+			return false;
+		
+		// connection to ourselves
+		if(Arrays.equals(peerId, Arrays.copyOfRange(handshake, 48, 68)))
+			return false;
+		
+		InetSocketAddress addr;
 		try {
-			listenSock = new ServerSocket(0);
-			listenPort = listenSock.getLocalPort();
-			return true;
+			addr = (InetSocketAddress)((SocketChannel)key.channel()).getRemoteAddress();
 		} catch(IOException e) {
-			e.printStackTrace();
 			return false;
 		}
+		if(blacklist.contains(addr.getAddress()) || peers.size() >= maxPeers)
+			return false;
+		
+		Peer peer = new Peer(this, key, handshake);
+		if(!peer.isConnected())
+			return false;
+		peers.add(peer);
+		peersAddresses.add(addr);
+		return true;
+	}
+	
+	// an inbound peer connects from another port than the one it listens on, 
+	// so its tracker address is matched by the host only
+	private boolean hasInboundPeer(InetAddress host)
+	{
+		synchronized(peers) {
+			for(Peer peer : peers) {
+				if(peer.isInbound() && peer.isConnected() && peer.getInetAddress().equals(host))
+					return true;
+			}
+		}
+		return false;
 	}
 	
 	
-	private TorrentWorker peerManager = new TorrentWorker() {
-		private Thread mainThread;
+	// called by the peer reactor about once a second
+	synchronized void managePeers()
+	{
+		if(state != State.RUNNING && state != State.SEEDING)
+			return;
 		
-		@Override
-		public void start() 
-		{
-			mainThread = new Thread(new Runnable() {
-				
-				@Override
-				public void run() 
-				{
-					while(!Thread.currentThread().isInterrupted()) {
-						try {
-							selector.select(1000);
-						} catch (IOException e) {
-							System.err.println(Torrent.this + "select() failed: " + e.getMessage());
-							break;
-						}
-						
-						if(Thread.currentThread().isInterrupted())
-							break;
-						
-						Set<SelectionKey> keys = selector.selectedKeys();
-						
-						Iterator<SelectionKey> it = keys.iterator();
-						while(!Thread.currentThread().isInterrupted() && it.hasNext()) {
-							if(maxDownloadSpeedExceeded()) {
-								try {
-									Thread.sleep(Math.max(0, 1000 - (System.currentTimeMillis()-lastQueryTime)));
-								} catch (InterruptedException e) {
-									Thread.currentThread().interrupt();
-									break;
-								}
-							}
-							
-							SelectionKey key = it.next();
-							if((key.interestOps() & SelectionKey.OP_CONNECT) != 0) {
-								if(peers.size() < maxPeers) {
-									peers.add(new Peer(Torrent.this, key));
-								} else {
-									try {
-										((SocketChannel)key.channel()).close();
-									} catch (IOException e) {
-									}
-								}
-							} else {
-								Peer peer = (Peer)key.attachment();
-								peer.process();
-							}
-							
-							it.remove();
-						}
-						
-						removeUnconnectedPeers();
-						
-						while(!Thread.currentThread().isInterrupted() && peers.size() < maxPeers && !candidatePeers.isEmpty()) {
-							InetSocketAddress addr = candidatePeers.get(0);
-							candidatePeers.remove(0);
-							if(peersAddresses.contains(addr) || blacklist.contains(addr.getAddress()))
-								continue;
-							peersAddresses.add(addr);
-							
-							try {
-								SocketChannel channel = SocketChannel.open();
-								channel.configureBlocking(false);
-								channel.connect(addr);
-								channel.register(selector, SelectionKey.OP_CONNECT);
-							} catch (IOException e) {
-								peersAddresses.remove(addr);
-								continue;
-							}
-							
-							
-						}
-						
-						if(!pieces.isEndGameOn() && pieces.getFreePiecesCount() == 0 && !completed) 
-							pieces.startEndGame();
-					}
-										
-					synchronized(peers) {
-						for(Peer peer : peers)
-							peer.endConnection();
-						peers.clear();
-					}
-				}
-
-				private void removeUnconnectedPeers() 
-				{
-					synchronized(peers) {
-						Iterator<Peer> it = peers.iterator();
-						while(it.hasNext()) {
-							Peer peer = it.next();
-							if(!peer.isConnected())
-								it.remove();
-						}
+		removeUnconnectedPeers();
+		
+		if(reactor.getSessionChoker() == null)
+			choker.tick(getPeers());
+		
+		if(streaming)
+			pieces.getPicker().setFastRate(fastPeersRate());
+		
+		while(peers.size() < maxPeers && !candidatePeers.isEmpty()) {
+			InetSocketAddress addr = candidatePeers.get(0);
+			candidatePeers.remove(0);
+			if(peersAddresses.contains(addr) || blacklist.contains(addr.getAddress()) || hasInboundPeer(addr.getAddress()))
+				continue;
+			peersAddresses.add(addr);
+			
+			SocketChannel channel = null;
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.connect(addr);
+				reactor.register(channel, SelectionKey.OP_CONNECT, connectHandler);
+			} catch (IOException e) {
+				peersAddresses.remove(addr);
+				if(channel != null) {
+					try {
+						channel.close();
+					} catch(IOException ee) {
 					}
 				}
-			}, Torrent.this + " peer manager");
-			
-			mainThread.start();
+				continue;
+			}
 		}
-
+		
+		if(!pieces.isEndGameOn() && pieces.getFreePiecesCount() == 0 && !completed) 
+			pieces.startEndGame();
+	}
+	
+	private void removeUnconnectedPeers() 
+	{
+		synchronized(peers) {
+			Iterator<Peer> it = peers.iterator();
+			while(it.hasNext()) {
+				Peer peer = it.next();
+				if(!peer.isConnected())
+					it.remove();
+			}
+		}
+	}
+	
+	private PeerReactor.Handler connectHandler = new PeerReactor.Handler() {
 		@Override
-		public void stop() 
+		public void process(SelectionKey key) 
 		{
-			mainThread.interrupt();
-			try {
-				mainThread.join();
-			} catch(InterruptedException e) {
-				
+			if((state == State.RUNNING || state == State.SEEDING) && peers.size() < maxPeers) {
+				peers.add(new Peer(Torrent.this, key));
+			} else {
+				fail(key, null);
 			}
 		}
 		
+		@Override
+		public void fail(SelectionKey key, RuntimeException e)
+		{
+			key.cancel();
+			try {
+				key.channel().close();
+			} catch (IOException ee) {
+			}
+		}
 	};
 	
 	void addPeers(List<InetSocketAddress> newPeers)
@@ -419,14 +461,32 @@ public class Torrent {
 	}
 
 	public void blacklistAddress(InetAddress addr)
+	{
+		blacklist.add(addr);
+		for(Peer peer : getPeers()) {
+			if(peer.getInetAddress().equals(addr))
+				peer.disconnect();
+		}
+	}
+	
+	public List<Peer> getPeers()
 	{
 		synchronized(peers) {
-			for(Peer peer : peers) {
-				if(peer.getInetAddress().equals(addr))
-					peer.endConnection();
-			}
+			return new ArrayList<>(peers);
+		}
+	}
+	
+	// average depth of the peers request pipelines
+	public double getAverageRequestQueueDepth()
+	{
+		synchronized(peers) {
+			if(peers.isEmpty())
+				return 0;
+			long sum = 0;
+			for(Peer peer : peers)
+				sum += peer.getRequestQueueDepth();
+			return (double)sum / peers.size();
 		}
-		blacklist.add(addr);
 	}
 	
 	public Pieces getPieces()
@@ -441,12 +501,12 @@ public class Torrent {
 
 	public void increaseDownloaded(int length) 
 	{
-		downloadCount += length;
+		downloadCount.addAndGet(length);
 	}
 	
 	public int getPeersCount()
 	{
-		return peersCount;
+		return peersCount.get();
 	}
 	
 	private void setDefaultDownloadDirectory()
@@ -468,6 +528,8 @@ public class Torrent {
 	{
 		if(new File(downloadDirectory).isDirectory())
 			this.downloadDirectory = downloadDirectory;
+		if(fragmentSaver != null)
+			fragmentSaver.updatePaths();
 	}
 	
 	public String getDownloadDirectory()
@@ -481,6 +543,35 @@ public class Torrent {
 		return files;
 	}
 	
+	public int getFilePriority(int index)
+	{
+		return files.get(index).priority;
+	}
+	
+	// PRIORITY_SKIP leaves the file out of the download
+	public synchronized void setFilePriority(int index, int priority)
+	{
+		FragmentSaver.FileEntry e = files.get(index);
+		if(e.priority == priority)
+			return;
+		e.priority = priority;
+		
+		pieces.setFilePriorities(files);
+		if(priority == FragmentSaver.FileEntry.PRIORITY_SKIP)
+			fragmentSaver.closeFile(e);
+		if(state == State.RUNNING || state == State.SEEDING)
+			fragmentSaver.createFiles();
+		
+		if(pieces.getWantedLeftCount() == 0) {
+			setCompleted();
+		} else if(completed) {
+			// more files were selected after the download finished
+			completed = false;
+			if(state == State.SEEDING)
+				state = State.RUNNING;
+		}
+	}
+	
 
 	public byte[] getInfoHash()
 	{
@@ -502,6 +593,11 @@ public class Torrent {
 		return pieces.getPiecesVerifiedCount();
 	}
 
+	public int getPiecesHashedWithoutReadCount()
+	{
+		return pieces.getHashedWithoutReadCount();
+	}
+
 	public int getPiecesCount() 
 	{
 		return pieces.getCount();
@@ -524,25 +620,38 @@ public class Torrent {
 	
 	public long getDownloadCount()
 	{
-		lastQueryTime = System.currentTimeMillis();
-		lastDownloadCount = downloadCount;
-		return downloadCount;
+		return downloadCount.get();
 	}
 	
 	public long getUploadCount()
 	{
-		lastUploadCount = uploadCount;
-		return uploadCount;
+		return uploadCount.get();
 	}
 	
 	public void increaseUploadCount(long delta)
 	{
-		uploadCount += delta;
+		uploadCount.addAndGet(delta);
+	}
+	
+	public void increaseSendStats(long syscalls, long bytes)
+	{
+		sendSyscalls.addAndGet(syscalls);
+		sentBytes.addAndGet(bytes);
+	}
+	
+	// how many write syscalls the peers needed per megabyte sent
+	public double getSendSyscallsPerMB()
+	{
+		long bytes = sentBytes.get();
+		if(bytes == 0)
+			return 0;
+		return (double)sendSyscalls.get() * (1 << 20) / bytes;
 	}
 	
+	// bytes of the selected files that are still missing
 	public long getLeftCount()
 	{
-		return totalSize - getVerifiedDownloadCount();
+		return pieces.getWantedLeftBytes();
 	}
 
 	public String getInfoHashStr() 
@@ -554,13 +663,71 @@ public class Torrent {
 	{
 		try {
 			out.writeObject(downloadDirectory);
-			return pieces.save(out);
+			if(!pieces.save(out))
+				return false;
+			
+			int[] priorities = new int[files.size()];
+			for(int i = 0; i < priorities.length; ++i)
+				priorities[i] = files.get(i).priority;
+			out.writeObject(priorities);
+			out.writeObject(getFileStamps());
+			return true;
 		} catch(IOException e) {
 			e.printStackTrace();
 			return false;
 		}
 	}
 	
+	// size and modification time of every file, so the next start can tell 
+	// which files were changed while the torrent was not running
+	private long[] getFileStamps()
+	{
+		long[] stamps = new long[2 * files.size()];
+		for(int i = 0; i < files.size(); ++i) {
+			FragmentSaver.FileEntry e = files.get(i);
+			if(e.dirty) {
+				e.dirty = false;
+				File f = new File(e.pathname);
+				e.savedLength = f.length();
+				e.savedModified = f.lastModified();
+			}
+			stamps[2*i] = e.savedLength;
+			stamps[2*i+1] = e.savedModified;
+		}
+		return stamps;
+	}
+	
+	// the saved pieces are trusted, except the ones that touch files whose 
+	// size or modification time is not what was saved. those are hashed again
+	private void recheckChangedFiles(long[] stamps)
+	{
+		int pieceLength = pieces.getPieceLength();
+		BitSet changed = new BitSet(pieces.getCount());
+		long offset = 0;
+		for(int i = 0; i < files.size(); ++i) {
+			FragmentSaver.FileEntry e = files.get(i);
+			File f = new File(e.pathname);
+			long length = f.length();
+			long modified = f.lastModified();
+			if(2*i+1 < stamps.length && stamps[2*i] == length && stamps[2*i+1] == modified) {
+				e.savedLength = length;
+				e.savedModified = modified;
+				e.dirty = false;
+			} else if(e.length > 0) {
+				changed.set((int)(offset / pieceLength), (int)((offset + e.length - 1) / pieceLength) + 1);
+			}
+			offset += e.length;
+		}
+		
+		if(changed.isEmpty())
+			return;
+		
+		pieces.invalidate(changed);
+		Recheck recheck = new Recheck(pieces, files, changed);
+		recheck.start();
+		recheck.join();
+	}
+	
 	public static void setSerializer(Serializer serializer)
 	{
 		Torrent.serializer = serializer;
@@ -572,6 +739,7 @@ public class Torrent {
 			return;
 		streaming = true;
 		
+		pieces.getPicker().setPlayback(playbackOffset, streamingLookahead, playbackRate);
 		synchronized(peers) {
 			for(Peer peer : peers)
 				peer.enableStreaming();
@@ -584,18 +752,65 @@ public class Torrent {
 			return;
 		streaming = false;
 		
+		pieces.getPicker().clearPlayback();
 		synchronized(peers) {
 			for(Peer peer : peers)
 				peer.disableStreaming();
 		}
 	}
 
-	public void addPieceToPeers(int index) 
+	// the player is at the offset now, the next lookahead bytes are downloaded 
+	// first
+	public void setPlaybackPosition(long offset)
 	{
-		synchronized(peers) {
-			for(Peer peer : peers)
-				peer.addPiece(index);
+		playbackOffset = offset;
+		if(streaming)
+			pieces.getPicker().setPlayback(playbackOffset, streamingLookahead, playbackRate);
+	}
+	
+	public long getPlaybackPosition()
+	{
+		return playbackOffset;
+	}
+	
+	public void setStreamingLookahead(long lookahead)
+	{
+		streamingLookahead = lookahead;
+		if(streaming)
+			pieces.getPicker().setPlayback(playbackOffset, streamingLookahead, playbackRate);
+	}
+	
+	public long getStreamingLookahead()
+	{
+		return streamingLookahead;
+	}
+	
+	// bytes per second the player consumes, the deadlines follow from it
+	public void setPlaybackRate(long playbackRate)
+	{
+		this.playbackRate = playbackRate;
+		if(streaming)
+			pieces.getPicker().setPlayback(playbackOffset, streamingLookahead, playbackRate);
+	}
+	
+	public long getPlaybackRate()
+	{
+		return playbackRate;
+	}
+	
+	// download rate of the fastest quarter of the peers that unchoke us
+	private double fastPeersRate()
+	{
+		List<Double> rates = new ArrayList<>();
+		for(Peer peer : getPeers()) {
+			if(peer.isConnected() && !peer.isPeerChoking())
+				rates.add(peer.getDownloadRate());
 		}
+		if(rates.isEmpty())
+			return 0;
+		
+		Collections.sort(rates, Collections.reverseOrder());
+		return rates.get(rates.size() / 4);
 	}
 	
 	public void remove()
@@ -648,12 +863,12 @@ public class Torrent {
 
 	public void incrementPeersCount() 
 	{
-		++peersCount;
+		peersCount.incrementAndGet();
 	}
 
 	public void decrementPeersCount() 
 	{
-		--peersCount;
+		peersCount.decrementAndGet();
 	}
 
 	public boolean isUploadOn()
@@ -661,6 +876,16 @@ public class Torrent {
 		return uploadOn;
 	}
 	
+	public boolean isZeroCopyUpload()
+	{
+		return zeroCopyUpload;
+	}
+	
+	public void setZeroCopyUpload(boolean zeroCopyUpload)
+	{
+		this.zeroCopyUpload = zeroCopyUpload;
+	}
+	
 	public boolean isDead()
 	{
 		return state == State.DYING;
@@ -676,6 +901,21 @@ public class Torrent {
 		pieces.verifyFromLocalData();	
 	}
 	
+	// checks the local data in the background, the returned check reports
+	// the progress and can be canceled. the pieces are marked verified 
+	// behind the picker and the peers so the torrent must be stopped
+	public Recheck recheck()
+	{
+		if(state != State.IDLE)
+			throw new IllegalStateException("the torrent must be stopped to recheck it");
+		if(recheck != null && !recheck.isDone())
+			return recheck;
+		
+		recheck = new Recheck(pieces, getFiles());
+		recheck.start();
+		return recheck;
+	}
+	
 	@Override
 	public String toString()
 	{
@@ -691,6 +931,74 @@ public class Torrent {
 		return "Seeding";
 	}
 	
+	// open files of this torrent, the least recently used are closed first
+	public int getMaxOpenFiles()
+	{
+		return fragmentSaver.getMaxOpenFiles();
+	}
+	
+	public void setMaxOpenFiles(int maxOpenFiles)
+	{
+		fragmentSaver.setMaxOpenFiles(maxOpenFiles);
+	}
+	
+	public boolean isMemoryMapped()
+	{
+		return fragmentSaver.isMemoryMapped();
+	}
+	
+	public void setMemoryMapped(boolean on)
+	{
+		fragmentSaver.setMemoryMapped(on);
+	}
+	
+	public long getMaxMappedMemory()
+	{
+		return fragmentSaver.getMaxMappedMemory();
+	}
+	
+	public void setMaxMappedMemory(long maxMappedMemory)
+	{
+		fragmentSaver.setMaxMappedMemory(maxMappedMemory);
+	}
+	
+	public long getMaxWriteCacheMemory()
+	{
+		return fragmentSaver.getWriteCache().getMaxMemory();
+	}
+	
+	public void setMaxWriteCacheMemory(long maxWriteCacheMemory)
+	{
+		fragmentSaver.getWriteCache().setMaxMemory(maxWriteCacheMemory);
+	}
+	
+	public long getMaxDiskQueueBytes()
+	{
+		return fragmentSaver.getMaxQueuedBytes();
+	}
+	
+	// the peers stop reading while more than this waits for the disk
+	public void setMaxDiskQueueBytes(long maxDiskQueueBytes)
+	{
+		fragmentSaver.setMaxQueuedBytes(maxDiskQueueBytes);
+	}
+	
+	public long getDiskQueueBytes()
+	{
+		return fragmentSaver.getQueuedBytes();
+	}
+	
+	public int getDiskQueueDepth()
+	{
+		return fragmentSaver.getQueuedRequestsCount();
+	}
+	
+	// milliseconds
+	public double getAverageDiskQueueWait()
+	{
+		return fragmentSaver.getAverageQueueWait();
+	}
+	
 	public int getMaxDownloadSpeed()
 	{
 		return maxDownloadSpeed;
@@ -699,6 +1007,7 @@ public class Torrent {
 	public void setMaxDownloadSpeed(int maxDownloadSpeed)
 	{
 		this.maxDownloadSpeed = maxDownloadSpeed;
+		downloadBucket.setRate(maxDownloadSpeed);
 	}
 	
 	public int getMaxUploadSpeed()
@@ -709,15 +1018,63 @@ public class Torrent {
 	public void setMaxUploadSpeed(int maxUploadSpeed)
 	{
 		this.maxUploadSpeed = maxUploadSpeed;
+		uploadBucket.setRate(maxUploadSpeed);
+	}
+	
+	public void increaseReclaimedRequests(long delta)
+	{
+		reclaimedRequests.addAndGet(delta);
+	}
+	
+	public void increaseTimedOutRequests(long delta)
+	{
+		timedOutRequests.addAndGet(delta);
+	}
+	
+	// requests given back to the selectors after a disconnect, choke or timeout
+	public long getReclaimedRequests()
+	{
+		return reclaimedRequests.get();
+	}
+	
+	public long getTimedOutRequests()
+	{
+		return timedOutRequests.get();
+	}
+	
+	public void increaseWasted(long length)
+	{
+		wastedCount.addAndGet(length);
+	}
+	
+	// payload of the blocks that were late or already there
+	public long getWastedCount()
+	{
+		return wastedCount.get();
+	}
+	
+	public int getUploadSlots()
+	{
+		return choker.getUploadSlots();
+	}
+	
+	public void setUploadSlots(int uploadSlots)
+	{
+		choker.setUploadSlots(uploadSlots);
+	}
+	
+	TokenBucket getDownloadBucket()
+	{
+		return downloadBucket;
 	}
 	
-	public boolean maxDownloadSpeedExceeded()
+	TokenBucket getUploadBucket()
 	{
-		return maxDownloadSpeed > 0 && downloadCount - lastDownloadCount >= maxDownloadSpeed;
+		return uploadBucket;
 	}
 	
-	public boolean maxUploadSpeedExceeded()
+	PeerReactor getReactor()
 	{
-		return maxUploadSpeed > 0 && uploadCount - lastUploadCount >= maxUploadSpeed;
+		return reactor;
 	}
 }
@@ -1,19 +1,28 @@
 package btclient;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 
 public class TorrentMaker {
-	
+	// the files are read in chunks of whole pieces, which are hashed by the
+	// workers while the next chunk is read
+	private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+	private static final int CHUNKS_PER_THREAD = 2;
 	
 	public static Torrent createTorrent(File src)
 	{		
@@ -22,8 +31,12 @@ public class TorrentMaker {
 			return null;
 		}
 		
+		Map<String, Object> info = createInfoDictionary(src);
+		if(info == null)
+			return null;
+		
 		Map<String, Object> root = new HashMap<>();
-		root.put("info", createInfoDictionary(src));
+		root.put("info", info);
 		root.put("announce-list", createAnnounceList());
 
 		byte[] bencoding = BeObject.encode(root);
@@ -49,7 +62,8 @@ public class TorrentMaker {
 		try {
 			Torrent tor =  new Torrent(dst);
 			tor.setDownloadDirectory(src.getParent());
-			tor.verifyFromLocalData();
+			// the pieces were just hashed from this data
+			tor.getPieces().setAllVerified();
 			return tor;
 		} catch(IOException e) {
 			e.printStackTrace();
@@ -69,55 +83,109 @@ public class TorrentMaker {
 
 		} else {
 			List<Object> files = new ArrayList<>();
-			createFiles(src, new ArrayList<>(), files, filesList);
+			// the paths are relative to the directory, which is the name
+			for(File subFile : listFiles(src))
+				createFiles(subFile, new ArrayList<>(), files, filesList);
 			info.put("files", files);
 		}
 		
+		long[] lengths = new long[filesList.size()];
 		long totalSize = 0;
-		for(File f : filesList)
-			totalSize += f.length();
+		for(int i = 0; i < lengths.length; ++i) {
+			lengths[i] = filesList.get(i).length();
+			totalSize += lengths[i];
+		}
 		int pieceLength = choosePieceLength(totalSize);
 		info.put("piece length", (long)pieceLength);
-		int piecesCount = (int)((totalSize+pieceLength-1) / pieceLength);
 		
+		byte[] pieces = hashPieces(filesList, lengths, totalSize, pieceLength);
+		if(pieces == null)
+			return null;
 		
+		info.put("pieces", pieces);
+		return info;
+	}
+	
+	// reads the files one after another and hashes the pieces in parallel, 
+	// the hashes are stored straight into the pieces string
+	private static byte[] hashPieces(List<File> filesList, long[] lengths, long totalSize, int pieceLength)
+	{
+		int piecesCount = (int)((totalSize+pieceLength-1) / pieceLength);
 		byte[] pieces = new byte[piecesCount * 20];
-		for(int i = 0; i < piecesCount; ++i) {
-			int length = i == piecesCount-1 ? (int)(totalSize % pieceLength) : pieceLength;					
-			byte[] piece = new byte[length];
-			long begin = pieceLength * i;
-			int off = 0;
+		
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		// bounds the memory of the chunks being hashed
+		Semaphore chunks = new Semaphore(threads * CHUNKS_PER_THREAD);
+		int chunkPieces = Math.max(1, CHUNK_SIZE / pieceLength);
+		
+		try {
+			byte[] chunk = null;
+			int fill = 0;
+			int firstPiece = 0;
 			
-			for(File f : filesList) {
-				if(begin < f.length()) {
-					try(RandomAccessFile file = new RandomAccessFile(f, "rw")) {
-						file.seek(begin);
-						int len = (int)Math.min(piece.length-off, f.length()-begin);
-						file.readFully(piece, off, len);
-						off += len;
-						begin += len;
-					} catch(Exception ee) {
-						ee.printStackTrace();
+			for(int i = 0; i < lengths.length; ++i) {
+				try(FileInputStream in = new FileInputStream(filesList.get(i))) {
+					FileChannel fc = in.getChannel();
+					long left = lengths[i];
+					while(left > 0) {
+						if(chunk == null) {
+							chunks.acquire();
+							chunk = new byte[chunkPieces * pieceLength];
+						}
+						
+						int n = fc.read(ByteBuffer.wrap(chunk, fill, (int)Math.min(chunk.length-fill, left)));
+						if(n < 0)
+							throw new IOException(filesList.get(i) + " was truncated");
+						fill += n;
+						left -= n;
+						
+						if(fill == chunk.length) {
+							hashChunk(workers, chunks, chunk, fill, firstPiece, pieceLength, pieces);
+							firstPiece += chunkPieces;
+							chunk = null;
+							fill = 0;
+						}
 					}
 				}
-				
-				if(off == piece.length)
-					break;
-				
-				begin -= f.length();
 			}
 			
+			if(fill > 0)
+				hashChunk(workers, chunks, chunk, fill, firstPiece, pieceLength, pieces);
 			
-			try {
-				MessageDigest md = MessageDigest.getInstance("SHA-1");
-				byte[] hash = md.digest(piece);
-				System.arraycopy(hash, 0, pieces, i*20, hash.length);
-			} catch (NoSuchAlgorithmException e) {
-			}
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			return pieces;
+		} catch(IOException e) {
+			e.printStackTrace();
+			return null;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			workers.shutdownNow();
 		}
-		
-		info.put("pieces", pieces);
-		return info;
+	}
+	
+	private static void hashChunk(ExecutorService workers, Semaphore chunks, byte[] chunk, int length, 
+			int firstPiece, int pieceLength, byte[] pieces)
+	{
+		workers.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				try {
+					for(int off = 0, i = firstPiece; off < length; off += pieceLength, ++i) {
+						MessageDigest md = PieceVerifier.sha1();
+						md.update(chunk, off, Math.min(pieceLength, length-off));
+						byte[] hash = md.digest();
+						System.arraycopy(hash, 0, pieces, i*20, hash.length);
+					}
+				} finally {
+					chunks.release();
+				}
+			}
+		});
 	}
 	
 	private static int choosePieceLength(long totalSize) 
@@ -133,17 +201,27 @@ public class TorrentMaker {
 	{
 		path.add(file.getName());
 		if(file.isDirectory()) {
-			for(File subFile : file.listFiles())
+			for(File subFile : listFiles(file))
 				createFiles(subFile, path, files, filesList);
 		} else {
 			Map<String, Object> fileDict = new HashMap<>();
 			fileDict.put("length", file.length());
-			fileDict.put("path", path);
+			fileDict.put("path", new ArrayList<>(path));
 			files.add(fileDict);
 			filesList.add(file);
 		}
 		path.remove(path.size()-1);
 	}
+	
+	// sorted, so the same directory always gives the same torrent
+	private static File[] listFiles(File dir)
+	{
+		File[] list = dir.listFiles();
+		if(list == null)
+			return new File[0];
+		Arrays.sort(list);
+		return list;
+	}
 
 	private static final String[] trackersUrl = { "udp://open.demonii.com:1337",
 											   "udp://tracker.coppersurfer.tk:6969",
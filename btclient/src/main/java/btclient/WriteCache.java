@@ -0,0 +1,280 @@
+package btclient;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// blocks of the pieces downloaded to the disk are held here until the piece
+// is complete, so it is written at once instead of block by block. when the
+// memory runs out the least recently written pieces are given back to be
+// written in runs of contiguous blocks. complete pieces are kept as clean
+// copies for the verifier and the uploads until their memory is needed
+public class WriteCache {
+	static class Entry {
+		final int index;
+		final byte[][] blocks; // null for a clean piece
+		byte[] data; // the whole piece of a clean entry
+		int blocksCount;
+		long memory;
+		long lastWrite;
+
+		Entry(int index, int fragsCount)
+		{
+			this.index = index;
+			blocks = new byte[fragsCount][];
+		}
+
+		Entry(int index, byte[] data)
+		{
+			this.index = index;
+			this.data = data;
+			blocks = null;
+			memory = data.length;
+		}
+
+		boolean isClean()
+		{
+			return blocks == null;
+		}
+	}
+
+	public static final long DEFAULT_MAX_MEMORY = 16l * 1024 * 1024;
+
+	private final Pieces pieces;
+	private long maxMemory;
+	private long memory;
+	private LinkedHashMap<Integer, Entry> entries;
+
+	private long hitsCount;
+	private long missesCount;
+	private long uploadHitsCount;
+	private long uploadMissesCount;
+	private long blocksCount;
+	private long flushesCount;
+	private long flushedBytes;
+
+	public WriteCache(Pieces pieces, long maxMemory)
+	{
+		this.pieces = pieces;
+		this.maxMemory = maxMemory;
+		entries = new LinkedHashMap<>(16, 0.75f, true);
+	}
+
+	// returns the entries that have to be written now, a complete piece or
+	// the ones evicted for this block
+	public synchronized List<Entry> add(int index, int begin, byte[] block, long now)
+	{
+		List<Entry> flushed = new ArrayList<>();
+		Entry e = entries.get(index);
+		if(e != null && e.isClean()) {
+			// the piece is downloaded again
+			remove(e);
+			e = null;
+		}
+		if(e == null) {
+			e = new Entry(index, pieces.getPieceFragCount(index));
+			entries.put(index, e);
+		}
+
+		int frag = begin / Pieces.FRAG_LENGTH;
+		if(e.blocks[frag] == null) {
+			++e.blocksCount;
+		} else {
+			e.memory -= e.blocks[frag].length;
+			memory -= e.blocks[frag].length;
+		}
+		e.blocks[frag] = block;
+		e.memory += block.length;
+		memory += block.length;
+		e.lastWrite = now;
+		++blocksCount;
+
+		if(isComplete(e)) {
+			remove(e);
+			flushed.add(e);
+		}
+		evict(flushed);
+		return flushed;
+	}
+
+	// the piece was written, it is kept if there is room
+	public synchronized void putClean(int index, byte[] data)
+	{
+		Entry e = entries.get(index);
+		if(e != null)
+			return;
+
+		e = new Entry(index, data);
+		entries.put(index, e);
+		memory += e.memory;
+		evictClean();
+		if(memory > maxMemory)
+			remove(e);
+	}
+
+	// the whole piece if it is held clean, the data must not be changed.
+	// the verifier reads pieces that were just written, the uploads can ask
+	// for any piece so they are counted apart
+	public synchronized byte[] getPiece(int index, boolean upload)
+	{
+		Entry e = entries.get(index);
+		if(e == null || !e.isClean()) {
+			if(upload)
+				++uploadMissesCount;
+			else
+				++missesCount;
+			return null;
+		}
+		
+		if(upload)
+			++uploadHitsCount;
+		else
+			++hitsCount;
+		return e.data;
+	}
+
+	// the dirty entries not written to since before the time
+	public synchronized List<Entry> removeIdle(long before)
+	{
+		List<Entry> flushed = new ArrayList<>();
+		Iterator<Entry> it = entries.values().iterator();
+		while(it.hasNext()) {
+			Entry e = it.next();
+			if(!e.isClean() && e.lastWrite < before) {
+				it.remove();
+				memory -= e.memory;
+				flushed.add(e);
+			}
+		}
+		return flushed;
+	}
+
+	// the dirty entries, the clean ones are dropped
+	public synchronized List<Entry> removeAll()
+	{
+		List<Entry> flushed = new ArrayList<>();
+		for(Entry e : entries.values()) {
+			if(!e.isClean())
+				flushed.add(e);
+		}
+		entries.clear();
+		memory = 0;
+		return flushed;
+	}
+
+	// true if some blocks are not written yet
+	public synchronized boolean hasDirty()
+	{
+		for(Entry e : entries.values()) {
+			if(!e.isClean())
+				return true;
+		}
+		return false;
+	}
+
+	public synchronized void flushed(int length)
+	{
+		++flushesCount;
+		flushedBytes += length;
+	}
+
+	public synchronized long getMaxMemory()
+	{
+		return maxMemory;
+	}
+
+	// dirty data over the new budget is written on the next block
+	public synchronized void setMaxMemory(long maxMemory)
+	{
+		this.maxMemory = maxMemory;
+		evictClean();
+	}
+
+	public synchronized long getMemory()
+	{
+		return memory;
+	}
+
+	public synchronized long getHitsCount()
+	{
+		return hitsCount;
+	}
+
+	public synchronized long getMissesCount()
+	{
+		return missesCount;
+	}
+
+	public synchronized long getUploadHitsCount()
+	{
+		return uploadHitsCount;
+	}
+
+	public synchronized long getUploadMissesCount()
+	{
+		return uploadMissesCount;
+	}
+
+	// blocks per write
+	public synchronized double getCoalescing()
+	{
+		return flushesCount == 0 ? 0 : (double)blocksCount / flushesCount;
+	}
+
+	public synchronized long getFlushesCount()
+	{
+		return flushesCount;
+	}
+
+	public synchronized long getFlushedBytes()
+	{
+		return flushedBytes;
+	}
+
+	// must hold the lock. the blocks of an entry that was evicted before are
+	// already written, the rest of the piece may be all here
+	private boolean isComplete(Entry e)
+	{
+		if(e.blocksCount == e.blocks.length)
+			return true;
+		for(int frag = 0; frag < e.blocks.length; ++frag) {
+			if(e.blocks[frag] == null && !pieces.isFragWritten(e.index, frag))
+				return false;
+		}
+		return true;
+	}
+
+	// must hold the lock
+	private void remove(Entry e)
+	{
+		entries.remove(e.index);
+		memory -= e.memory;
+	}
+
+	// must hold the lock, clean copies go first as they cost nothing to drop
+	private void evict(List<Entry> flushed)
+	{
+		evictClean();
+		Iterator<Entry> it = entries.values().iterator();
+		while(memory > maxMemory && it.hasNext()) {
+			Entry e = it.next();
+			it.remove();
+			memory -= e.memory;
+			flushed.add(e);
+		}
+	}
+
+	// must hold the lock
+	private void evictClean()
+	{
+		Iterator<Entry> it = entries.values().iterator();
+		while(memory > maxMemory && it.hasNext()) {
+			Entry e = it.next();
+			if(e.isClean()) {
+				it.remove();
+				memory -= e.memory;
+			}
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package btclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// torrents, piece tables and peers for the tests, everything lives in a 
+// temporary home directory
+class Fixtures {
+	static final File home;
+	
+	static {
+		try {
+			home = Files.createTempDirectory("btclient").toFile();
+		} catch(IOException e) {
+			throw new IllegalStateException(e);
+		}
+		// the serializer keeps its files under the home directory
+		System.setProperty("user.home", home.getPath());
+		new File(home, "Downloads").mkdir();
+		Torrent.setSerializer(new Serializer());
+	}
+	
+	private static Torrent torrent;
+	private static final List<Closeable> opened = new ArrayList<>();
+	
+	// a torrent the piece tables belong to, it is never started
+	static synchronized Torrent torrent() throws IOException
+	{
+		if(torrent != null)
+			return torrent;
+		
+		File src = new File(home, "src.bin");
+		try(RandomAccessFile f = new RandomAccessFile(src, "rw")) {
+			f.setLength(64 * 1024);
+		}
+		torrent = TorrentMaker.createTorrent(src);
+		return torrent;
+	}
+	
+	// a piece table of random hashes, nothing is verified
+	static Pieces pieces(int pieceLength, int count) throws Exception
+	{
+		byte[] hashes = new byte[count * 20];
+		new Random(count).nextBytes(hashes);
+		
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		b.write(("d12:piece lengthi" + pieceLength + "e6:pieces" + hashes.length + ":").getBytes("US-ASCII"));
+		b.write(hashes);
+		b.write('e');
+		
+		Torrent tor = torrent();
+		Pieces pieces = new Pieces(tor, BeObject.parse(b.toByteArray()).getMap(), (long)pieceLength * count);
+		// the saver is not started, its queue only counts what the table hands over
+		pieces.setFragmentSaver(new FragmentSaver(tor));
+		return pieces;
+	}
+	
+	// a peer on a loopback connection, its key belongs to no event loop so
+	// it is never selected and its timers are dropped. closePeers() has to
+	// be called when the test is done with it
+	static Peer peer() throws IOException
+	{
+		try(ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress("127.0.0.1", 0));
+			SocketChannel remote = SocketChannel.open(server.getLocalAddress());
+			SocketChannel channel = server.accept();
+			Selector selector = Selector.open();
+			synchronized(opened) {
+				opened.add(remote);
+				opened.add(channel);
+				opened.add(selector);
+			}
+			channel.configureBlocking(false);
+			SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+			return new Peer(torrent(), key, new byte[Peer.HANDSHAKE_LEN]);
+		}
+	}
+	
+	// closes the connections and selectors of the peers made so far
+	static void closePeers()
+	{
+		synchronized(opened) {
+			for(Closeable c : opened) {
+				try {
+					c.close();
+				} catch(IOException e) {
+				}
+			}
+			opened.clear();
+		}
+	}
+}
@@ -0,0 +1,292 @@
+package btclient;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+// the compare-and-set paths of the piece table, requested, receiving and
+// have bits and the handoff of a completed piece to the disk
+public class PiecesTest extends TestCase {
+	private static final int PIECE_LENGTH = 64 * Pieces.FRAG_LENGTH;
+	private static final int THREADS = 8;
+	
+	private ExecutorService executor;
+	private Peer peer;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		executor = Executors.newFixedThreadPool(THREADS);
+		peer = Fixtures.peer();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		executor.shutdownNow();
+		Fixtures.closePeers();
+	}
+	
+	public void testBlocksAreRequestedOnce() throws Exception
+	{
+		Pieces pieces = Fixtures.pieces(PIECE_LENGTH, 4);
+		assertTrue(pieces.requestPiece(0, peer));
+		assertFalse(pieces.requestPiece(0, peer));
+		
+		ConcurrentLinkedQueue<Integer> claimed = new ConcurrentLinkedQueue<>();
+		runConcurrently(new Callable<Void>() {
+			@Override
+			public Void call()
+			{
+				Pieces.PieceFrag f;
+				while((f = pieces.requestPieceFrag(0)) != null)
+					claimed.add(f.frag);
+				return null;
+			}
+		});
+		
+		boolean[] seen = new boolean[pieces.getPieceFragCount(0)];
+		for(int frag : claimed) {
+			assertFalse("frag " + frag + " requested twice", seen[frag]);
+			seen[frag] = true;
+		}
+		assertEquals(seen.length, claimed.size());
+	}
+	
+	public void testReclaimedBlocksAreRequestedAgain() throws Exception
+	{
+		Pieces pieces = Fixtures.pieces(PIECE_LENGTH, 4);
+		assertTrue(pieces.requestPiece(1, peer));
+		List<Pieces.PieceFrag> all = new ArrayList<>();
+		Pieces.PieceFrag f;
+		while((f = pieces.requestPieceFrag(1)) != null)
+			all.add(f);
+		
+		List<Pieces.PieceFrag> lost = all.subList(10, 13);
+		assertEquals(3, pieces.pieceReceiveFailed(lost));
+		// the bits are clear already
+		assertEquals(0, pieces.pieceReceiveFailed(lost));
+		assertFalse(pieces.isFree(1));
+		
+		for(int i = 10; i < 13; ++i)
+			assertEquals(i, pieces.requestPieceFrag(1).frag);
+		assertNull(pieces.requestPieceFrag(1));
+		
+		// nothing is outstanding anymore, the piece goes back to the picker
+		int free = pieces.getFreePiecesCount();
+		assertEquals(all.size(), pieces.pieceReceiveFailed(all));
+		assertTrue(pieces.isFree(1));
+		assertEquals(free + 1, pieces.getFreePiecesCount());
+	}
+	
+	public void testReclaimedPieceGivesBackItsBuffer() throws Exception
+	{
+		Pieces pieces = Fixtures.pieces(PIECE_LENGTH, 4);
+		// room for one piece buffer
+		pieces.setMaxBuffersMemory(PIECE_LENGTH);
+		assertTrue(pieces.requestPiece(0, peer));
+		List<Pieces.PieceFrag> all = new ArrayList<>();
+		Pieces.PieceFrag f;
+		while((f = pieces.requestPieceFrag(0)) != null)
+			all.add(f);
+		assertEquals(all.size(), pieces.pieceReceiveFailed(all));
+		assertTrue(pieces.isFree(0));
+		
+		// the next piece is assembled in the same buffer
+		assertTrue(pieces.requestPiece(1, peer));
+		assertNotNull(pieces.getBlockBuffer(pieces.requestPieceFrag(1)));
+	}
+	
+	public void testOnlyWantedPiecesAreCountedFree() throws Exception
+	{
+		Pieces pieces = Fixtures.pieces(PIECE_LENGTH, 4);
+		assertTrue(pieces.requestPiece(0, peer));
+		assertTrue(pieces.requestPiece(3, peer));
+		List<Pieces.PieceFrag> first = requestAll(pieces, 0);
+		List<Pieces.PieceFrag> last = requestAll(pieces, 3);
+		
+		// the first file covers pieces 0 and 1, it is deselected while
+		// piece 0 is downloaded
+		List<FragmentSaver.FileEntry> files = new ArrayList<>();
+		files.add(new FragmentSaver.FileEntry(Arrays.asList("a"), 2l * PIECE_LENGTH));
+		files.add(new FragmentSaver.FileEntry(Arrays.asList("b"), 2l * PIECE_LENGTH));
+		files.get(0).priority = FragmentSaver.FileEntry.PRIORITY_SKIP;
+		pieces.setFilePriorities(files);
+		assertEquals(1, pieces.getFreePiecesCount());
+		
+		pieces.pieceReceiveFailed(first);
+		assertTrue(pieces.isFree(0));
+		assertEquals(1, pieces.getFreePiecesCount());
+		
+		pieces.pieceReceiveFailed(last);
+		assertEquals(2, pieces.getFreePiecesCount());
+	}
+	
+	public void testReceivingLeaseIsExclusive() throws Exception
+	{
+		Pieces pieces = Fixtures.pieces(PIECE_LENGTH, 4);
+		assertTrue(pieces.requestPiece(2, peer));
+		Pieces.PieceFrag f = pieces.requestPieceFrag(2);
+		
+		AtomicInteger leases = new AtomicInteger();
+		runConcurrently(new Callable<Void>() {
+			@Override
+			public Void call()
+			{
+				if(pieces.getBlockBuffer(f) != null)
+					leases.incrementAndGet();
+				return null;
+			}
+		});
+		assertEquals(1, leases.get());
+		
+		// a broken transfer gives the lease back
+		assertNull(pieces.getBlockBuffer(f));
+		pieces.receiveBlockFailed(f);
+		ByteBuffer b = pieces.getBlockBuffer(f);
+		assertNotNull(b);
+		assertEquals(Pieces.FRAG_LENGTH, b.remaining());
+		
+		b.put(new byte[Pieces.FRAG_LENGTH]);
+		assertTrue(pieces.receivedBlock(f, peer));
+		assertTrue(pieces.haveFrag(f));
+		// the block is there, no lease is given for it anymore
+		assertNull(pieces.getBlockBuffer(f));
+		assertFalse(pieces.receivedBlock(f, peer));
+	}
+	
+	public void testLeasedBlockIsNotTakenFromAnotherPeer() throws Exception
+	{
+		Pieces pieces = Fixtures.pieces(PIECE_LENGTH, 4);
+		assertTrue(pieces.requestPiece(1, peer));
+		Pieces.PieceFrag f = pieces.requestPieceFrag(1);
+		byte[] block = new byte[Pieces.FRAG_LENGTH];
+		
+		// the block is being read into the buffer by its owner
+		ByteBuffer b = pieces.getBlockBuffer(f);
+		assertNotNull(b);
+		assertFalse(pieces.receivedFragment(f, block, peer));
+		
+		b.put(block);
+		assertTrue(pieces.receivedBlock(f, peer));
+		assertFalse(pieces.receivedFragment(f, block, peer));
+		
+		Pieces.PieceFrag g = pieces.requestPieceFrag(1);
+		assertTrue(pieces.receivedFragment(g, block, peer));
+	}
+	
+	public void testBufferedPieceIsHandedOverOnce() throws Exception
+	{
+		int count = 32;
+		Pieces pieces = Fixtures.pieces(PIECE_LENGTH, count);
+		FragmentSaver saver = saver(pieces);
+		for(int i = 0; i < count; ++i)
+			assertTrue(pieces.requestPiece(i, peer));
+		
+		// every thread tries to deliver every block
+		runConcurrently(new Callable<Void>() {
+			@Override
+			public Void call()
+			{
+				byte[] block = new byte[Pieces.FRAG_LENGTH];
+				for(int i = 0; i < count; ++i) {
+					for(int frag = 0; frag < pieces.getPieceFragCount(i); ++frag) {
+						Pieces.PieceFrag f = new Pieces.PieceFrag(i, frag);
+						ByteBuffer b = pieces.getBlockBuffer(f);
+						if(b != null) {
+							b.put(block);
+							pieces.receivedBlock(f, peer);
+						} else {
+							pieces.receivedFragment(f, block, peer);
+						}
+					}
+				}
+				return null;
+			}
+		});
+		
+		// one whole piece write each, no block went to the disk on its own
+		assertEquals(count, saver.getQueuedRequestsCount());
+		assertEquals((long)count * PIECE_LENGTH, saver.getQueuedBytes());
+		for(int i = 0; i < count; ++i)
+			assertFalse(pieces.isFree(i));
+	}
+	
+	public void testDiskPieceBlocksAreWrittenOnce() throws Exception
+	{
+		int count = 16;
+		Pieces pieces = Fixtures.pieces(PIECE_LENGTH, count);
+		pieces.setMaxBuffersMemory(0);
+		FragmentSaver saver = saver(pieces);
+		for(int i = 0; i < count; ++i)
+			assertTrue(pieces.requestPiece(i, peer));
+		
+		runConcurrently(new Callable<Void>() {
+			@Override
+			public Void call()
+			{
+				byte[] block = new byte[Pieces.FRAG_LENGTH];
+				for(int i = 0; i < count; ++i) {
+					for(int frag = 0; frag < pieces.getPieceFragCount(i); ++frag) {
+						Pieces.PieceFrag f = new Pieces.PieceFrag(i, frag);
+						assertNull(pieces.getBlockBuffer(f));
+						pieces.receivedFragment(f, block, peer);
+					}
+				}
+				return null;
+			}
+		});
+		
+		assertEquals(count * pieces.getPieceFragCount(0), saver.getQueuedRequestsCount());
+		for(int i = 0; i < count; ++i) {
+			for(int frag = 0; frag < pieces.getPieceFragCount(i); ++frag)
+				assertTrue(pieces.haveFrag(new Pieces.PieceFrag(i, frag)));
+		}
+	}
+	
+	private List<Pieces.PieceFrag> requestAll(Pieces pieces, int index)
+	{
+		List<Pieces.PieceFrag> l = new ArrayList<>();
+		Pieces.PieceFrag f;
+		while((f = pieces.requestPieceFrag(index)) != null)
+			l.add(f);
+		return l;
+	}
+	
+	private FragmentSaver saver(Pieces pieces) throws Exception
+	{
+		FragmentSaver saver = new FragmentSaver(Fixtures.torrent());
+		pieces.setFragmentSaver(saver);
+		return saver;
+	}
+	
+	// all threads start the task at once, failures are thrown here
+	private void runConcurrently(Callable<Void> task) throws Exception
+	{
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<Void>> results = new ArrayList<>();
+		for(int t = 0; t < THREADS; ++t) {
+			results.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception
+				{
+					start.await();
+					return task.call();
+				}
+			}));
+		}
+		start.countDown();
+		for(Future<Void> r : results)
+			r.get();
+	}
+}
@@ -0,0 +1,72 @@
+package btclient;
+
+import junit.framework.TestCase;
+
+// a sender that waits for the buckets the way a peer does must see the
+// configured rate within a few percent at both ends of the range
+public class TokenBucketTest extends TestCase {
+	private static final long RUN_TIME = 2000000000l;
+	private static final double TOLERANCE = 0.05;
+
+	public void testSlowRate() throws Exception
+	{
+		assertRate(100 * 1000);
+	}
+
+	public void testFastRate() throws Exception
+	{
+		assertRate(100 * 1000 * 1000);
+	}
+
+	public void testUnlimitedRate()
+	{
+		TokenBucket bucket = new TokenBucket(0);
+		assertEquals(Long.MAX_VALUE, bucket.available());
+		bucket.consume(1 << 30);
+		assertEquals(0, bucket.delay(BandwidthShaper.QUANTUM));
+	}
+
+	public void testGlobalBucketLimits() throws Exception
+	{
+		TokenBucket torrentBucket = new TokenBucket(0);
+		TokenBucket globalBucket = new TokenBucket(1000 * 1000);
+		double rate = send(torrentBucket, globalBucket);
+		assertEquals(1000 * 1000, rate, 1000 * 1000 * TOLERANCE);
+	}
+
+	private void assertRate(long rate) throws Exception
+	{
+		double measured = send(new TokenBucket(rate), new TokenBucket(0));
+		assertEquals(rate, measured, rate * TOLERANCE);
+	}
+
+	// bytes per second let through after the initial burst is spent, taken
+	// between the first and the last send so the waits at the ends don't count
+	private double send(TokenBucket torrentBucket, TokenBucket globalBucket) throws Exception
+	{
+		BandwidthShaper.consume(torrentBucket, globalBucket,
+				Math.min(torrentBucket.available(), globalBucket.available()));
+
+		long sent = 0;
+		long first = 0;
+		long last = 0;
+		long end = System.nanoTime() + RUN_TIME;
+		while(System.nanoTime() < end) {
+			long quota = BandwidthShaper.quota(torrentBucket, globalBucket);
+			if(quota <= 0) {
+				long delay = BandwidthShaper.delay(torrentBucket, globalBucket);
+				Thread.sleep(delay / 1000000, (int)(delay % 1000000));
+				continue;
+			}
+
+			long n = Math.min(quota, BandwidthShaper.QUANTUM);
+			BandwidthShaper.consume(torrentBucket, globalBucket, n);
+			last = System.nanoTime();
+			if(first == 0)
+				first = last;
+			else
+				sent += n;
+		}
+		return sent * 1e9 / (last - first);
+	}
+}
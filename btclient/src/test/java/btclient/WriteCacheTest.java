@@ -0,0 +1,51 @@
+package btclient;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+// a piece leaves the cache as soon as all of its blocks are either held or
+// already on the disk
+public class WriteCacheTest extends TestCase {
+	private static final int FRAGS = 4;
+	private static final int PIECE_LENGTH = FRAGS * Pieces.FRAG_LENGTH;
+
+	private byte[] block = new byte[Pieces.FRAG_LENGTH];
+
+	public void testCompletePieceIsFlushed() throws Exception
+	{
+		Pieces pieces = Fixtures.pieces(PIECE_LENGTH, 2);
+		WriteCache cache = new WriteCache(pieces, PIECE_LENGTH);
+
+		for(int frag = 0; frag < FRAGS - 1; ++frag)
+			assertTrue(cache.add(0, frag * Pieces.FRAG_LENGTH, block, 0).isEmpty());
+
+		List<WriteCache.Entry> flushed = cache.add(0, (FRAGS - 1) * Pieces.FRAG_LENGTH, block, 0);
+		assertEquals(1, flushed.size());
+		assertEquals(0, flushed.get(0).index);
+		assertEquals(0, cache.getMemory());
+	}
+
+	public void testPartlyEvictedPieceIsFlushed() throws Exception
+	{
+		Pieces pieces = Fixtures.pieces(PIECE_LENGTH, 2);
+		WriteCache cache = new WriteCache(pieces, 2 * Pieces.FRAG_LENGTH);
+
+		cache.add(0, 0, block, 0);
+		cache.add(0, Pieces.FRAG_LENGTH, block, 0);
+		// the third block is over the budget, the first two are given back
+		List<WriteCache.Entry> flushed = cache.add(1, 0, block, 0);
+		assertEquals(1, flushed.size());
+		assertEquals(0, flushed.get(0).index);
+		for(int frag = 0; frag < 2; ++frag)
+			pieces.writeFragmentCompleted(0, frag * Pieces.FRAG_LENGTH, Pieces.FRAG_LENGTH);
+
+		assertTrue(cache.add(0, 2 * Pieces.FRAG_LENGTH, block, 0).isEmpty());
+		flushed = cache.add(0, 3 * Pieces.FRAG_LENGTH, block, 0);
+		assertEquals(1, flushed.size());
+		WriteCache.Entry e = flushed.get(0);
+		assertEquals(0, e.index);
+		assertNull(e.blocks[0]);
+		assertNotNull(e.blocks[3]);
+	}
+}